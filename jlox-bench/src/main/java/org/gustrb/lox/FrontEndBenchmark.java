@@ -0,0 +1,102 @@
+package org.gustrb.lox;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each stage of the front end on its own: every benchmark starts from what
+ * the previous stage produced during the setup
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrontEndBenchmark {
+    @Param({"fib_rec.lox", "linked_list.lox", "classes.lox", "recursion", "methods", "strings", "closures"})
+    public String workload;
+
+    // The session every stage reports to, none of the workloads has errors
+    private Lox lox;
+    private String source;
+    private List<Token> tokens;
+    private List<Stmt> statements;
+
+    /**
+     * Already scanned tokens handed to the Parser, so parsing is measured without the Scanner
+     */
+    private static final class Scanned implements TokenSource {
+        private final List<Token> tokens;
+        private int current = 0;
+
+        Scanned(final List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public TokenType peekType() {
+            return tokens.get(current).type;
+        }
+
+        @Override
+        public Token peek() {
+            return tokens.get(current);
+        }
+
+        @Override
+        public TokenType previousType() {
+            return tokens.get(current - 1).type;
+        }
+
+        @Override
+        public Token previous() {
+            return tokens.get(current - 1);
+        }
+
+        @Override
+        public void advance() {
+            if (peekType() != TokenType.EOF) current++;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        source = Workloads.source(workload);
+        lox = Workloads.session();
+        tokens = new Scanner(source, lox).scanTokens();
+        statements = new Parser(new Scanned(tokens), lox).parse();
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, lox).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(new Scanned(tokens), lox).parse();
+    }
+
+    /**
+     * Resolves the same trees every time, the Resolver just writes the same annotations on them again
+     */
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver(lox).resolve(statements);
+        return statements;
+    }
+}
@@ -0,0 +1,74 @@
+package org.gustrb.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A buffer of many functions where one of them keeps being edited, compiled
+ * again through the IncrementalCompiler against compiling it from scratch.
+ * The setup fails unless every other statement is actually reused
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IncrementalBenchmark {
+    @Param({"200"})
+    public int functions;
+
+    // The same buffer, but for a number on the function in the middle, both on the same lines
+    private final String[] versions = new String[2];
+    private int next = 0;
+    private Lox lox;
+    private IncrementalCompiler incremental;
+
+    @Setup
+    public void setUp() {
+        for (var v = 0; v < versions.length; ++v) {
+            final var buffer = new StringBuilder();
+            for (var i = 0; i < functions; ++i) {
+                final var value = i == functions / 2 ? v : i;
+                buffer.append("fun f").append(i).append("(n) {\n")
+                        .append("    var total = 0;\n")
+                        .append("    for (var i = 0; i < n; i = i + 1) total = total + i * ").append(value).append(";\n")
+                        .append("    return total;\n")
+                        .append("}\n");
+            }
+            versions[v] = buffer.toString();
+        }
+
+        lox = Workloads.session();
+        incremental = new IncrementalCompiler(lox);
+        incremental.compile(versions[0]);
+        incremental.compile(versions[1]);
+        if (incremental.reused() != functions - 1) {
+            throw new IllegalStateException("Only " + incremental.reused() + " of " + (functions - 1) + " functions reused");
+        }
+    }
+
+    @Benchmark
+    public List<Stmt> edit() {
+        next ^= 1;
+        return incremental.compile(versions[next]);
+    }
+
+    @Benchmark
+    public List<Stmt> scratch() {
+        next ^= 1;
+        return lox.compile(versions[next]);
+    }
+}
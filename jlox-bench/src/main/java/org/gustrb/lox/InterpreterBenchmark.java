@@ -0,0 +1,72 @@
+package org.gustrb.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the resolved workloads on each engine. Every invocation starts on a
+ * new Interpreter, so on fresh globals, and the closure and jvm engines
+ * compile the program as part of it, same as a run of jlox does
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+    @Param({"fib_rec.lox", "linked_list.lox", "classes.lox", "recursion", "methods", "strings", "closures"})
+    public String workload;
+
+    @Param({"tree", "closure", "jvm"})
+    public String engine;
+
+    // Folds constants before running, see Optimizer
+    @Param({"false", "true"})
+    public boolean optimize;
+
+    private List<Stmt> statements;
+    private PrintStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        final var lox = new Lox(Lox.Engine.TREE, false, null, optimize, System.err);
+        statements = lox.compile(Workloads.source(workload));
+        if (statements == null) throw new IllegalStateException("The workload " + workload + " doesn't compile");
+
+        out = System.out;
+        System.setOut(Workloads.discard());
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public Interpreter interpret() {
+        final var interpreter = new Interpreter();
+        switch (engine) {
+            case "tree": interpreter.interpret(statements); break;
+            case "closure": new ClosureCompiler(interpreter).interpret(statements); break;
+            case "jvm": new JvmCompiler(interpreter).interpret(statements); break;
+            default: throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+        return interpreter;
+    }
+}
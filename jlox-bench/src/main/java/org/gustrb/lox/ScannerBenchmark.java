@@ -0,0 +1,68 @@
+package org.gustrb.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scans a source made almost only of keywords and identifiers, many of them
+ * starting like a keyword (form, classy, thisOne), so nearly all the time
+ * goes to telling one from the other in Scanner.identifier. It doesn't need
+ * to parse
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScannerBenchmark {
+    private static final String[] WORDS = {
+            "and", "class", "else", "false", "for", "fun", "if", "nil", "or",
+            "print", "return", "super", "this", "true", "var", "while",
+            "andy", "classy", "elsewhere", "falsehood", "form", "funnel", "iffy", "nilly", "orbit",
+            "printer", "returned", "superb", "thisOne", "truly", "variable", "whilst",
+            "a", "count", "total", "makeCounter", "x1", "_private", "Vec", "fib",
+    };
+
+    @Param({"10000"})
+    public int lines;
+
+    private String source;
+    private Lox lox;
+
+    @Setup
+    public void setUp() {
+        final var buffer = new StringBuilder();
+        for (var i = 0; i < lines; ++i) {
+            for (var w = 0; w < 8; ++w) {
+                if (w > 0) buffer.append(' ');
+                buffer.append(WORDS[(i * 7 + w * 13) % WORDS.length]);
+            }
+            buffer.append(";\n");
+        }
+        source = buffer.toString();
+        lox = Workloads.session();
+    }
+
+    @Benchmark
+    public List<Token> scan() {
+        return new Scanner(source, lox).scanTokens();
+    }
+
+    @Benchmark
+    public PackedTokens packed() {
+        return new Scanner(source, lox).scanPacked();
+    }
+}
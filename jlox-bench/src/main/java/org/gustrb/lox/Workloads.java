@@ -0,0 +1,150 @@
+package org.gustrb.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The programs the benchmarks run: some of the scripts under jlox/tests plus
+ * bigger synthetic ones, each stressing one part of the interpreter
+ */
+final class Workloads {
+    // Deep, non tail recursion: a call per level and the arithmetic on the way back
+    private static final String RECURSION = """
+            fun depth(n) {
+                if (n == 0) return 0;
+                return 1 + depth(n - 1);
+            }
+
+            fun fib(n) {
+                if (n <= 1) return n;
+                return fib(n - 1) + fib(n - 2);
+            }
+
+            var total = 0;
+            for (var i = 0; i < 100; i = i + 1) {
+                total = total + depth(500);
+            }
+            print total + fib(20);
+            """;
+
+    // Instances, fields, initializers, inheritance and a lot of method calls
+    private static final String METHODS = """
+            class Vec {
+                init(x, y) {
+                    this.x = x;
+                    this.y = y;
+                }
+
+                add(other) {
+                    return Vec(this.x + other.x, this.y + other.y);
+                }
+
+                dot(other) {
+                    return this.x * other.x + this.y * other.y;
+                }
+            }
+
+            class Scaled < Vec {
+                init(x, y, factor) {
+                    super.init(x * factor, y * factor);
+                }
+
+                dot(other) {
+                    return super.dot(other) / 2;
+                }
+            }
+
+            var sum = Vec(0, 0);
+            var dots = 0;
+            for (var i = 0; i < 20000; i = i + 1) {
+                var v = Scaled(i, i + 1, 2);
+                sum = sum.add(v);
+                dots = dots + v.dot(sum);
+            }
+            print dots;
+            """;
+
+    // Concatenations growing a string, and many small ones
+    private static final String STRINGS = """
+            var text = "";
+            for (var i = 0; i < 2000; i = i + 1) {
+                text = text + "x";
+            }
+
+            var words = 0;
+            for (var i = 0; i < 20000; i = i + 1) {
+                var word = "a" + "b" + "c";
+                if (word == "abc") words = words + 1;
+            }
+            print words;
+            """;
+
+    // Counters as in tests/counter.lox, each holding on to its own variable
+    private static final String CLOSURES = """
+            fun makeCounter() {
+                var i = 0;
+                fun count() {
+                    i = i + 1;
+                    return i;
+                }
+                return count;
+            }
+
+            var total = 0;
+            for (var c = 0; c < 200; c = c + 1) {
+                var counter = makeCounter();
+                for (var i = 0; i < 200; i = i + 1) {
+                    total = total + counter();
+                }
+            }
+            print total;
+            """;
+
+    private Workloads() {}
+
+    /**
+     * The source of that workload, either one of the synthetic ones or the name of a script under jlox/tests
+     */
+    static String source(final String name) throws IOException {
+        switch (name) {
+            case "recursion": return RECURSION;
+            case "methods": return METHODS;
+            case "strings": return STRINGS;
+            case "closures": return CLOSURES;
+        }
+
+        return Files.readString(tests().resolve(name));
+    }
+
+    /**
+     * The jlox/tests directory, from the jlox.tests property or looked up from the working directory
+     */
+    private static Path tests() {
+        final var property = System.getProperty("jlox.tests");
+        if (property != null) return Paths.get(property);
+
+        for (final var candidate : new String[]{"jlox/tests", "../jlox/tests"}) {
+            final var path = Paths.get(candidate);
+            if (Files.isDirectory(path)) return path;
+        }
+        throw new IllegalStateException("Can't find jlox/tests, set it with -Djlox.tests=<dir>");
+    }
+
+    /**
+     * A session for the front end, the workloads are expected to have no errors
+     */
+    static Lox session() {
+        return new Lox(Lox.Engine.TREE, false, null, false, System.err);
+    }
+
+    /**
+     * Where 'print' goes while benchmarking, the Interpreter writes straight to System.out
+     */
+    static PrintStream discard() {
+        return new PrintStream(OutputStream.nullOutputStream());
+    }
+}
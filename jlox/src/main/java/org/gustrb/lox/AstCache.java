@@ -0,0 +1,277 @@
+package org.gustrb.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A directory of already resolved programs, keyed by the hash of their
+ * source, so an unchanged script skips scanning, parsing and resolving and
+ * goes straight to the engine.
+ *
+ * Entries are the trees encoded by AstCodec, after a header with the
+ * schema of the trees, the version of the Resolver annotations on them and
+ * a checksum of the encoding, and they are memory
+ * mapped when loaded. Anything wrong with an entry (written by another
+ * version of the trees, truncated, damaged...) just makes it a miss, and it
+ * gets written again.
+ */
+final class AstCache {
+    private static final int MAGIC = 0x4C4F5841; // "LOXA"
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Path directory;
+
+    AstCache(final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The key of a source, the hash of its bytes (and of the charset they are
+     * decoded with and the Resolver version they are resolved by)
+     */
+    static String key(final ByteBuffer source) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Charset.defaultCharset().name().getBytes(StandardCharsets.UTF_8));
+            digest.update(ByteBuffer.allocate(4).putInt(0, Resolver.VERSION));
+            digest.update(source.duplicate());
+
+            final var key = new StringBuilder();
+            for (final var b : digest.digest())
+                key.append(String.format("%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to have SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The resolved statements stored under that key, or null if there are none
+     */
+    List<Stmt> load(final String key) {
+        final var path = directory.resolve(key + ".ast");
+        if (!Files.isRegularFile(path)) return null;
+
+        try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final var in = new Input(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (in.buffer.getInt() != MAGIC || in.buffer.getInt() != AstCodec.SCHEMA) return null;
+            // Same trees, but annotated by other rules
+            if (in.buffer.getInt() != Resolver.VERSION) return null;
+
+            // A damaged encoding could still decode, into another program or
+            // into annotations the engines trip on, so it is checked first
+            final var checksum = in.buffer.getInt();
+            if (checksum != checksum(in.buffer.duplicate())) return null;
+            return AstCodec.read(in);
+        } catch (IOException | RuntimeException e) {
+            // BufferUnderflowException, IllegalStateException for bad tags or
+            // counts, ClassCastException for nodes where they don't belong...
+            return null;
+        }
+    }
+
+    void store(final String key, final List<Stmt> statements) {
+        final var out = new Output();
+        AstCodec.write(statements, out);
+        final var encoded = out.bytes.toByteArray();
+
+        final var entry = ByteBuffer.allocate(16 + encoded.length)
+                .putInt(MAGIC)
+                .putInt(AstCodec.SCHEMA)
+                .putInt(Resolver.VERSION)
+                .putInt(checksum(ByteBuffer.wrap(encoded)))
+                .put(encoded);
+
+        // Written aside and moved in place, so concurrent runs never see half an entry
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temporary, entry.array());
+            Files.move(temporary, directory.resolve(key + ".ast"), StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+        } catch (IOException e) {
+            // The cache is only an optimization, the script runs all the same
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException e) {
+                    // Left for whoever cleans the directory
+                }
+            }
+        }
+    }
+
+    private static int checksum(final ByteBuffer encoded) {
+        final var crc = new CRC32C();
+        crc.update(encoded);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Primitives of the encoding: counts and ints are varints (zigzag for
+     * ints, since the Resolver annotations default to -1), strings are written
+     * once and then referenced by their index
+     */
+    static final class Output {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void tag(final int tag) {
+            bytes.write(tag);
+        }
+
+        void count(final int count) {
+            var value = count;
+            while ((value & ~0x7F) != 0) {
+                bytes.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes.write(value);
+        }
+
+        void integer(final int value) {
+            count((value << 1) ^ (value >> 31));
+        }
+
+        void string(final String string) {
+            final var index = strings.get(string);
+            if (index != null) {
+                count(index + 1);
+                return;
+            }
+
+            strings.put(string, strings.size());
+            final var utf8 = string.getBytes(StandardCharsets.UTF_8);
+            count(0);
+            count(utf8.length);
+            bytes.writeBytes(utf8);
+        }
+
+        void literal(final Object value) {
+            if (value == null) {
+                tag(0);
+            } else if (value instanceof Double) {
+                tag(1);
+                bytes.writeBytes(ByteBuffer.allocate(8).putDouble((double) value).array());
+            } else if (value instanceof String) {
+                tag(2);
+                string((String) value);
+            } else {
+                tag((boolean) value ? 3 : 4);
+            }
+        }
+
+        void token(final Token token) {
+            tag(token.type.ordinal());
+            string(token.lexeme);
+            literal(token.literal);
+            count(token.line);
+        }
+
+        void tokens(final List<Token> tokens) {
+            count(tokens.size());
+            for (final var token : tokens)
+                token(token);
+        }
+    }
+
+    static final class Input {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<>();
+
+        Input(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int tag() {
+            return buffer.get() & 0xFF;
+        }
+
+        /**
+         * A count of things still to be read, every one of them takes at
+         * least a byte, so there can't be more than the bytes left
+         */
+        int count() {
+            final var count = varint();
+            if (count < 0 || count > buffer.remaining()) throw new IllegalStateException("Bad count");
+            return count;
+        }
+
+        private int varint() {
+            var value = 0;
+            var shift = 0;
+            int b;
+            do {
+                if (shift > 28) throw new IllegalStateException("Varint too long");
+                b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        int integer() {
+            final var value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String string() {
+            final var index = varint();
+            if (index < 0 || index > strings.size()) throw new IllegalStateException("Bad string index");
+            if (index != 0) return strings.get(index - 1);
+
+            final var utf8 = new byte[count()];
+            buffer.get(utf8);
+            final var string = new String(utf8, StandardCharsets.UTF_8);
+            strings.add(string);
+            return string;
+        }
+
+        Object literal() {
+            switch (tag()) {
+                case 0: return null;
+                case 1: return Numbers.box(buffer.getDouble());
+                case 2: return string();
+                case 3: return true;
+                case 4: return false;
+            }
+
+            throw new IllegalStateException("Unknown literal tag");
+        }
+
+        Token token() {
+            final var tag = tag();
+            if (tag >= TYPES.length) throw new IllegalStateException("Unknown token type");
+            final var type = TYPES[tag];
+            final var lexeme = string();
+            final var literal = literal();
+            return new Token(type, lexeme, literal, varint());
+        }
+
+        List<Token> tokens() {
+            final var count = count();
+            final List<Token> tokens = new ArrayList<>(count);
+            for (var i = 0; i < count; ++i)
+                tokens.add(token());
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.gustrb.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of the Expr and Stmt trees, along with the Resolver's
+ * annotations, see AstCache. Generated by AstGenerator with the trees themselves
+ */
+final class AstCodec {
+    static final int SCHEMA = 1733359556;
+
+    private AstCodec() {}
+
+    static void write(final List<Stmt> statements, final AstCache.Output out) {
+        new Writer(out).stmts(statements);
+    }
+
+    static List<Stmt> read(final AstCache.Input in) {
+        return readStmts(in);
+    }
+
+    private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final AstCache.Output out;
+
+        Writer(final AstCache.Output out) {
+            this.out = out;
+        }
+
+        void expr(final Expr expr) {
+            if (expr == null) {
+                out.tag(0);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        void exprs(final List<? extends Expr> exprs) {
+            out.count(exprs.size());
+            for (final var expr : exprs)
+                expr(expr);
+        }
+
+        void stmt(final Stmt stmt) {
+            if (stmt == null) {
+                out.tag(0);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        void stmts(final List<? extends Stmt> stmts) {
+            out.count(stmts.size());
+            for (final var stmt : stmts)
+                stmt(stmt);
+        }
+
+        @Override
+        public Void visitAssignExpr(final Expr.Assign expr) {
+            out.tag(1);
+            out.token(expr.name);
+            expr(expr.value);
+            out.integer(expr.depth);
+            out.integer(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(final Expr.Binary expr) {
+            out.tag(2);
+            expr(expr.left);
+            out.token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(final Expr.Call expr) {
+            out.tag(3);
+            expr(expr.callee);
+            out.token(expr.paren);
+            exprs(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(final Expr.Get expr) {
+            out.tag(4);
+            expr(expr.object);
+            out.token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(final Expr.Set expr) {
+            out.tag(5);
+            expr(expr.object);
+            out.token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(final Expr.Super expr) {
+            out.tag(6);
+            out.token(expr.keyword);
+            out.token(expr.method);
+            out.integer(expr.depth);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(final Expr.This expr) {
+            out.tag(7);
+            out.token(expr.keyword);
+            out.integer(expr.depth);
+            out.integer(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(final Expr.Grouping expr) {
+            out.tag(8);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(final Expr.Literal expr) {
+            out.tag(9);
+            out.literal(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(final Expr.Logical expr) {
+            out.tag(10);
+            expr(expr.left);
+            out.token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(final Expr.Unary expr) {
+            out.tag(11);
+            out.token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(final Expr.Variable expr) {
+            out.tag(12);
+            out.token(expr.name);
+            out.integer(expr.depth);
+            out.integer(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(final Stmt.Block stmt) {
+            out.tag(1);
+            stmts(stmt.statements);
+            out.integer(stmt.scoped ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(final Stmt.Class stmt) {
+            out.tag(2);
+            out.token(stmt.name);
+            expr(stmt.superclass);
+            stmts(stmt.methods);
+            out.integer(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(final Stmt.Expression stmt) {
+            out.tag(3);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(final Stmt.Function stmt) {
+            out.tag(4);
+            out.token(stmt.name);
+            out.tokens(stmt.params);
+            stmts(stmt.body);
+            out.integer(stmt.slot);
+            out.integer(stmt.captures ? 1 : 0);
+            out.integer(stmt.captured ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(final Stmt.If stmt) {
+            out.tag(5);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(final Stmt.Print stmt) {
+            out.tag(6);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(final Stmt.Return stmt) {
+            out.tag(7);
+            out.token(stmt.keyword);
+            expr(stmt.value);
+            out.integer(stmt.tail ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(final Stmt.While stmt) {
+            out.tag(8);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(final Stmt.Var stmt) {
+            out.tag(9);
+            out.token(stmt.name);
+            expr(stmt.initializer);
+            out.integer(stmt.slot);
+            return null;
+        }
+    }
+
+    static Expr readExpr(final AstCache.Input in) {
+        switch (in.tag()) {
+            case 0: return null;
+            case 1: {
+                final var node = new Expr.Assign(in.token(), readExpr(in));
+                node.depth = in.integer();
+                node.slot = in.integer();
+                return node;
+            }
+            case 2: return new Expr.Binary(readExpr(in), in.token(), readExpr(in));
+            case 3: return new Expr.Call(readExpr(in), in.token(), readExprs(in));
+            case 4: return new Expr.Get(readExpr(in), in.token());
+            case 5: return new Expr.Set(readExpr(in), in.token(), readExpr(in));
+            case 6: {
+                final var node = new Expr.Super(in.token(), in.token());
+                node.depth = in.integer();
+                return node;
+            }
+            case 7: {
+                final var node = new Expr.This(in.token());
+                node.depth = in.integer();
+                node.slot = in.integer();
+                return node;
+            }
+            case 8: return new Expr.Grouping(readExpr(in));
+            case 9: return new Expr.Literal(in.literal());
+            case 10: return new Expr.Logical(readExpr(in), in.token(), readExpr(in));
+            case 11: return new Expr.Unary(in.token(), readExpr(in));
+            case 12: {
+                final var node = new Expr.Variable(in.token());
+                node.depth = in.integer();
+                node.slot = in.integer();
+                return node;
+            }
+        }
+
+        throw new IllegalStateException("Unknown Expr tag");
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends Expr> List<T> readExprs(final AstCache.Input in) {
+        final var count = in.count();
+        final List<T> nodes = new ArrayList<>(count);
+        for (var i = 0; i < count; ++i)
+            nodes.add((T) readExpr(in));
+        return nodes;
+    }
+
+    static Stmt readStmt(final AstCache.Input in) {
+        switch (in.tag()) {
+            case 0: return null;
+            case 1: {
+                final var node = new Stmt.Block(readStmts(in));
+                node.scoped = in.integer() != 0;
+                return node;
+            }
+            case 2: {
+                final var node = new Stmt.Class(in.token(), (Expr.Variable) readExpr(in), readStmts(in));
+                node.slot = in.integer();
+                return node;
+            }
+            case 3: return new Stmt.Expression(readExpr(in));
+            case 4: {
+                final var node = new Stmt.Function(in.token(), in.tokens(), readStmts(in));
+                node.slot = in.integer();
+                node.captures = in.integer() != 0;
+                node.captured = in.integer() != 0;
+                return node;
+            }
+            case 5: return new Stmt.If(readExpr(in), readStmt(in), readStmt(in));
+            case 6: return new Stmt.Print(readExpr(in));
+            case 7: {
+                final var node = new Stmt.Return(in.token(), readExpr(in));
+                node.tail = in.integer() != 0;
+                return node;
+            }
+            case 8: return new Stmt.While(readExpr(in), readStmt(in));
+            case 9: {
+                final var node = new Stmt.Var(in.token(), readExpr(in));
+                node.slot = in.integer();
+                return node;
+            }
+        }
+
+        throw new IllegalStateException("Unknown Stmt tag");
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends Stmt> List<T> readStmts(final AstCache.Input in) {
+        final var count = in.count();
+        final List<T> nodes = new ArrayList<>(count);
+        for (var i = 0; i < count; ++i)
+            nodes.add((T) readStmt(in));
+        return nodes;
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.gustrb.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs many scripts on the same JVM. The front end of every script (reading,
+ * scanning, parsing and resolving) runs concurrently on a fork-join pool,
+ * then the scripts are executed one after the other in the order they were
+ * given, each on its own Lox session so they don't share any globals.
+ *
+ * Diagnostics are buffered per script and written out once it has run, so
+ * they come back in input order as well.
+ */
+final class Batch {
+    private static final class Script {
+        final String path;
+        final ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        final PrintStream err = new PrintStream(diagnostics, true, Charset.defaultCharset());
+        final Lox lox;
+        List<Stmt> statements;
+        boolean unreadable = false;
+
+        Script(
+                final String path,
+                final Lox.Engine engine,
+                final boolean packedTokens,
+                final Path astCache,
+                final boolean optimize,
+                final Profiler profiler
+        ) {
+            this.path = path;
+            this.lox = new Lox(engine, packedTokens, astCache, optimize, err);
+            lox.profileWith(profiler);
+        }
+    }
+
+    private Batch() {}
+
+    /**
+     * Returns the status the process should exit with, the one of the first
+     * script that failed. Scripts run one at a time, so they can all share
+     * the same profiler (or none when it is null)
+     */
+    static int run(
+            final List<String> paths,
+            final Lox.Engine engine,
+            final boolean packedTokens,
+            final Path astCache,
+            final boolean optimize,
+            final Profiler profiler
+    ) {
+        final List<Script> scripts = new ArrayList<>(paths.size());
+        final List<ForkJoinTask<?>> frontEnds = new ArrayList<>(paths.size());
+        for (final var path : paths) {
+            final var script = new Script(path, engine, packedTokens, astCache, optimize, profiler);
+            scripts.add(script);
+            frontEnds.add(ForkJoinTask.adapt(() -> compile(script)));
+        }
+
+        // Runs on the common pool, since this isn't called from a fork-join worker
+        ForkJoinTask.invokeAll(frontEnds);
+
+        var status = 0;
+        for (final var script : scripts) {
+            if (script.statements != null) script.lox.execute(script.statements);
+
+            System.err.print(script.diagnostics.toString(Charset.defaultCharset()));
+            // 66 is sysexits' EX_NOINPUT, same family as the 65 and 70 of the single script mode
+            if (status == 0) status = script.unreadable ? 66 : script.lox.exitCode();
+        }
+        return status;
+    }
+
+    private static void compile(final Script script) {
+        try {
+            script.statements = script.lox.compileFile(script.path);
+        } catch (IOException e) {
+            script.err.println("Could not read '" + script.path + "': " + e);
+            script.unreadable = true;
+        }
+    }
+}
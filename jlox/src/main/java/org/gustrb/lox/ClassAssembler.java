@@ -0,0 +1,652 @@
+package org.gustrb.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Just enough of a class file writer for the JvmCompiler, it knows how to
+ * build the constant pool, fields, methods and the StackMapTable frames.
+ *
+ * Frames are computed from a simulated operand stack: every instruction
+ * emitted through Code updates the types it pops and pushes, and every
+ * label records the stack it was reached with. Locals are declared up front
+ * with a fixed type and nulled out on the method prologue, so every frame
+ * can list all of them.
+ */
+final class ClassAssembler {
+    static final String OBJECT = "java/lang/Object";
+    static final String INT = "I";
+    static final String BOOLEAN = "Z";
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final String superName;
+    private final List<String> interfaces = new ArrayList<>();
+    private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+    private int fieldCount = 0;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private int methodCount = 0;
+    private final ByteArrayOutputStream bootstrapMethods = new ByteArrayOutputStream();
+    private final Map<String, Integer> bootstrapIndex = new HashMap<>();
+
+    ClassAssembler(final String name, final String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    String name() {
+        return name;
+    }
+
+    void addInterface(final String internalName) {
+        interfaces.add(internalName);
+    }
+
+    void addStaticField(final String fieldName, final String descriptor) {
+        final var out = new DataOutputStream(fields);
+        write(() -> {
+            out.writeShort(ACC_PUBLIC | ACC_STATIC);
+            out.writeShort(utf8(fieldName));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        });
+        fieldCount++;
+    }
+
+    /**
+     * Starts a public instance method, the receiver and the parameters
+     * are the first locals of the returned Code
+     */
+    Code method(final String methodName, final String descriptor) {
+        final List<String> locals = new ArrayList<>();
+        locals.add(name);
+        locals.addAll(parameterTypes(descriptor));
+        return new Code(methodName, descriptor, locals);
+    }
+
+    byte[] toByteArray() {
+        final var bytes = new ByteArrayOutputStream();
+        final var out = new DataOutputStream(bytes);
+        write(() -> {
+            if (!bootstrapIndex.isEmpty()) utf8("BootstrapMethods");
+            final var thisClass = classRef(name);
+            final var superClass = classRef(superName);
+            final var interfaceRefs = new int[interfaces.size()];
+            for (var i = 0; i < interfaceRefs.length; ++i)
+                interfaceRefs[i] = classRef(interfaces.get(i));
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for (final var ref : interfaceRefs)
+                out.writeShort(ref);
+            out.writeShort(fieldCount);
+            out.write(fields.toByteArray());
+            out.writeShort(methodCount);
+            out.write(methods.toByteArray());
+
+            if (bootstrapIndex.isEmpty()) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(utf8("BootstrapMethods"));
+                out.writeInt(bootstrapMethods.size() + 2);
+                out.writeShort(bootstrapIndex.size());
+                out.write(bootstrapMethods.toByteArray());
+            }
+        });
+        return bytes.toByteArray();
+    }
+
+    // Constant pool
+
+    int utf8(final String value) {
+        return constant("U" + value, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(final String internalName) {
+        final var nameIndex = utf8(internalName);
+        return constant("C" + internalName, () -> {
+            pool.writeByte(7);
+            pool.writeShort(nameIndex);
+        });
+    }
+
+    int string(final String value) {
+        final var valueIndex = utf8(value);
+        return constant("S" + value, () -> {
+            pool.writeByte(8);
+            pool.writeShort(valueIndex);
+        });
+    }
+
+    int integer(final int value) {
+        return constant("I" + value, () -> {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        });
+    }
+
+    int nameAndType(final String memberName, final String descriptor) {
+        final var nameIndex = utf8(memberName);
+        final var descriptorIndex = utf8(descriptor);
+        return constant("N" + memberName + ":" + descriptor, () -> {
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+    }
+
+    int fieldRef(final String owner, final String fieldName, final String descriptor) {
+        return memberRef(9, owner, fieldName, descriptor);
+    }
+
+    int methodRef(final String owner, final String methodName, final String descriptor) {
+        return memberRef(10, owner, methodName, descriptor);
+    }
+
+    /**
+     * Registers a static bootstrap method taking the given int constants
+     * as its static arguments, returning its index on the BootstrapMethods table
+     */
+    int bootstrapMethod(final String owner, final String methodName, final String descriptor, final int... arguments) {
+        final var key = new StringBuilder(owner + "." + methodName + ":" + descriptor);
+        for (final var argument : arguments)
+            key.append(',').append(argument);
+
+        final var existing = bootstrapIndex.get(key.toString());
+        if (existing != null) return existing;
+
+        final var handle = methodHandle(6, methodRef(owner, methodName, descriptor));
+        final var argumentIndexes = new int[arguments.length];
+        for (var i = 0; i < arguments.length; ++i)
+            argumentIndexes[i] = integer(arguments[i]);
+
+        final var out = new DataOutputStream(bootstrapMethods);
+        write(() -> {
+            out.writeShort(handle);
+            out.writeShort(argumentIndexes.length);
+            for (final var argument : argumentIndexes)
+                out.writeShort(argument);
+        });
+
+        final var index = bootstrapIndex.size();
+        bootstrapIndex.put(key.toString(), index);
+        return index;
+    }
+
+    private int methodHandle(final int kind, final int reference) {
+        return constant("H" + kind + ":" + reference, () -> {
+            pool.writeByte(15);
+            pool.writeByte(kind);
+            pool.writeShort(reference);
+        });
+    }
+
+    int invokeDynamic(final int bootstrapMethod, final String methodName, final String descriptor) {
+        final var nameAndTypeIndex = nameAndType(methodName, descriptor);
+        return constant("D" + bootstrapMethod + ":" + methodName + ":" + descriptor, () -> {
+            pool.writeByte(18);
+            pool.writeShort(bootstrapMethod);
+            pool.writeShort(nameAndTypeIndex);
+        });
+    }
+
+    private int memberRef(final int tag, final String owner, final String memberName, final String descriptor) {
+        final var ownerIndex = classRef(owner);
+        final var nameAndTypeIndex = nameAndType(memberName, descriptor);
+        return constant(tag + owner + "." + memberName + ":" + descriptor, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndTypeIndex);
+        });
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    private int constant(final String key, final PoolWriter writer) {
+        final var existing = poolIndex.get(key);
+        if (existing != null) return existing;
+
+        write(writer);
+        final var index = poolCount++;
+        if (poolCount > 0xFFFF) {
+            throw new IllegalStateException("Constant pool too large.");
+        }
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    private static void write(final PoolWriter writer) {
+        try {
+            writer.write();
+        } catch (IOException e) {
+            // Only writing to memory, this can't happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static List<String> parameterTypes(final String descriptor) {
+        final List<String> types = new ArrayList<>();
+        var i = 1;
+        while (descriptor.charAt(i) != ')') {
+            final var start = i;
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            i++;
+            types.add(internalType(descriptor.substring(start, i)));
+        }
+        return types;
+    }
+
+    static String returnType(final String descriptor) {
+        final var type = descriptor.substring(descriptor.indexOf(')') + 1);
+        return type.equals("V") ? null : internalType(type);
+    }
+
+    private static String internalType(final String descriptor) {
+        if (descriptor.startsWith("L")) {
+            return descriptor.substring(1, descriptor.length() - 1);
+        }
+        return descriptor;
+    }
+
+    static final class Label {
+        private int position = -1;
+        private List<String> stack;
+        private final List<int[]> fixups = new ArrayList<>();
+    }
+
+    final class Code {
+        private static final int ACONST_NULL = 0x01;
+        private static final int ICONST_0 = 0x03;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int LDC = 0x12;
+        private static final int LDC_W = 0x13;
+        private static final int ALOAD = 0x19;
+        private static final int AALOAD = 0x32;
+        private static final int ASTORE = 0x3A;
+        private static final int AASTORE = 0x53;
+        private static final int POP = 0x57;
+        private static final int DUP = 0x59;
+        private static final int IXOR = 0x82;
+        private static final int IFEQ = 0x99;
+        private static final int IFNE = 0x9A;
+        private static final int GOTO = 0xA7;
+        private static final int ARETURN = 0xB0;
+        private static final int RETURN = 0xB1;
+        private static final int GETSTATIC = 0xB2;
+        private static final int INVOKEVIRTUAL = 0xB6;
+        private static final int INVOKESPECIAL = 0xB7;
+        private static final int INVOKESTATIC = 0xB8;
+        private static final int INVOKEDYNAMIC = 0xBA;
+        private static final int ANEWARRAY = 0xBD;
+        private static final int CHECKCAST = 0xC0;
+
+        private final String methodName;
+        private final String descriptor;
+        private final int parameterLocals;
+        private final List<String> locals;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private List<String> stack = new ArrayList<>();
+        private int maxStack = 0;
+        private final TreeMap<Integer, List<String>> frames = new TreeMap<>();
+
+        private Code(final String methodName, final String descriptor, final List<String> locals) {
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.parameterLocals = locals.size();
+            this.locals = locals;
+        }
+
+        /**
+         * Declares a new local of the given type, it starts as null
+         */
+        int newLocal(final String type) {
+            locals.add(type);
+            return locals.size() - 1;
+        }
+
+        boolean isReachable() {
+            return stack != null;
+        }
+
+        // Instructions
+
+        void aconstNull() {
+            op(ACONST_NULL);
+            push(OBJECT);
+        }
+
+        void iconst(final int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            } else {
+                ldc(integer(value));
+            }
+            push(INT);
+        }
+
+        void ldcString(final String value) {
+            ldc(string(value));
+            push("java/lang/String");
+        }
+
+        private void ldc(final int index) {
+            if (index <= 0xFF) {
+                op(LDC);
+                u1(index);
+            } else {
+                op(LDC_W);
+                u2(index);
+            }
+        }
+
+        void aload(final int local) {
+            op(ALOAD);
+            u1(local);
+            push(locals.get(local));
+        }
+
+        void astore(final int local) {
+            op(ASTORE);
+            u1(local);
+            pop(1);
+        }
+
+        void aaload() {
+            op(AALOAD);
+            pop(2);
+            push(OBJECT);
+        }
+
+        void aastore() {
+            op(AASTORE);
+            pop(3);
+        }
+
+        void anewarray(final String type) {
+            op(ANEWARRAY);
+            u2(classRef(type));
+            pop(1);
+            push("[L" + type + ";");
+        }
+
+        void pop() {
+            op(POP);
+            pop(1);
+        }
+
+        void dup() {
+            op(DUP);
+            push(stack.get(stack.size() - 1));
+        }
+
+        /**
+         * Flips the boolean on top of the stack
+         */
+        void not() {
+            iconst(1);
+            op(IXOR);
+            pop(2);
+            push(INT);
+        }
+
+        void checkcast(final String type) {
+            op(CHECKCAST);
+            u2(classRef(type));
+            pop(1);
+            push(type);
+        }
+
+        /**
+         * Forgets the precise type of the value on top of the stack, so
+         * values coming from different branches agree on their frame
+         */
+        void widen(final String type) {
+            stack.set(stack.size() - 1, type);
+        }
+
+        void getstatic(final String owner, final String fieldName, final String fieldDescriptor) {
+            op(GETSTATIC);
+            u2(fieldRef(owner, fieldName, fieldDescriptor));
+            push(internalType(fieldDescriptor));
+        }
+
+        void invokestatic(final String owner, final String name, final String methodDescriptor) {
+            op(INVOKESTATIC);
+            u2(methodRef(owner, name, methodDescriptor));
+            invoked(methodDescriptor, 0);
+        }
+
+        void invokevirtual(final String owner, final String name, final String methodDescriptor) {
+            op(INVOKEVIRTUAL);
+            u2(methodRef(owner, name, methodDescriptor));
+            invoked(methodDescriptor, 1);
+        }
+
+        void invokespecial(final String owner, final String name, final String methodDescriptor) {
+            op(INVOKESPECIAL);
+            u2(methodRef(owner, name, methodDescriptor));
+            invoked(methodDescriptor, 1);
+        }
+
+        void invokedynamic(final int bootstrapMethod, final String name, final String methodDescriptor) {
+            op(INVOKEDYNAMIC);
+            u2(invokeDynamic(bootstrapMethod, name, methodDescriptor));
+            u2(0);
+            invoked(methodDescriptor, 0);
+        }
+
+        private void invoked(final String methodDescriptor, final int receiver) {
+            pop(parameterTypes(methodDescriptor).size() + receiver);
+            final var result = returnType(methodDescriptor);
+            if (result != null) push(result);
+        }
+
+        void areturn() {
+            op(ARETURN);
+            pop(1);
+            stack = null;
+        }
+
+        void vreturn() {
+            op(RETURN);
+            stack = null;
+        }
+
+        void ifeq(final Label label) {
+            jump(IFEQ, label, 1);
+        }
+
+        void ifne(final Label label) {
+            jump(IFNE, label, 1);
+        }
+
+        void goTo(final Label label) {
+            jump(GOTO, label, 0);
+            stack = null;
+        }
+
+        private void jump(final int opcode, final Label label, final int operands) {
+            final var position = bytes.size();
+            op(opcode);
+            pop(operands);
+            if (label.position != -1) {
+                u2(offset(label.position - position));
+            } else {
+                label.fixups.add(new int[]{position, bytes.size()});
+                u2(0);
+            }
+            if (label.stack == null) label.stack = new ArrayList<>(stack);
+        }
+
+        void bind(final Label label) {
+            label.position = bytes.size();
+            if (stack == null) {
+                // Only reachable through jumps, so take the stack they had
+                stack = label.stack != null ? new ArrayList<>(label.stack) : new ArrayList<>();
+            } else if (label.stack == null) {
+                label.stack = new ArrayList<>(stack);
+            }
+            frames.put(label.position, new ArrayList<>(stack));
+
+            final var code = bytes.toByteArray();
+            for (final var fixup : label.fixups) {
+                final var offset = offset(label.position - fixup[0]);
+                code[fixup[1]] = (byte) (offset >> 8);
+                code[fixup[1] + 1] = (byte) offset;
+            }
+            if (!label.fixups.isEmpty()) {
+                bytes.reset();
+                bytes.write(code, 0, code.length);
+            }
+            label.fixups.clear();
+        }
+
+        private int offset(final int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new IllegalStateException("Branch offset out of range.");
+            }
+            return offset;
+        }
+
+        /**
+         * Writes the method into the class, the Code must not be used afterwards
+         */
+        void end() {
+            // Prologue setting every declared local to null so they all
+            // have a value on every frame
+            final var prologue = new ByteArrayOutputStream();
+            for (var i = parameterLocals; i < locals.size(); ++i) {
+                prologue.write(ACONST_NULL);
+                prologue.write(ASTORE);
+                prologue.write(i);
+            }
+            if (locals.size() > 0xFF) {
+                throw new IllegalStateException("Too many locals.");
+            }
+
+            final var body = bytes.toByteArray();
+            final var codeLength = prologue.size() + body.length;
+            if (codeLength > 0xFFFF) {
+                throw new IllegalStateException("Method too large.");
+            }
+
+            final var stackMap = new ByteArrayOutputStream();
+            final var stackMapOut = new DataOutputStream(stackMap);
+            final var methodOut = new DataOutputStream(methods);
+            write(() -> {
+                var previous = -1;
+                for (final var frame : frames.entrySet()) {
+                    final var position = frame.getKey() + prologue.size();
+                    // full_frame
+                    stackMapOut.writeByte(255);
+                    stackMapOut.writeShort(position - previous - 1);
+                    stackMapOut.writeShort(locals.size());
+                    for (final var local : locals)
+                        verificationType(stackMapOut, local);
+                    stackMapOut.writeShort(frame.getValue().size());
+                    for (final var item : frame.getValue())
+                        verificationType(stackMapOut, item);
+                    previous = position;
+                }
+
+                final var codeAttribute = new ByteArrayOutputStream();
+                final var codeOut = new DataOutputStream(codeAttribute);
+                codeOut.writeShort(Math.max(maxStack, 1));
+                codeOut.writeShort(locals.size());
+                codeOut.writeInt(codeLength);
+                codeOut.write(prologue.toByteArray());
+                codeOut.write(body);
+                codeOut.writeShort(0);
+                if (frames.isEmpty()) {
+                    codeOut.writeShort(0);
+                } else {
+                    codeOut.writeShort(1);
+                    codeOut.writeShort(utf8("StackMapTable"));
+                    codeOut.writeInt(stackMap.size() + 2);
+                    codeOut.writeShort(frames.size());
+                    codeOut.write(stackMap.toByteArray());
+                }
+
+                methodOut.writeShort(ACC_PUBLIC);
+                methodOut.writeShort(utf8(methodName));
+                methodOut.writeShort(utf8(descriptor));
+                methodOut.writeShort(1);
+                methodOut.writeShort(utf8("Code"));
+                methodOut.writeInt(codeAttribute.size());
+                methodOut.write(codeAttribute.toByteArray());
+            });
+            methodCount++;
+        }
+
+        private void verificationType(final DataOutputStream out, final String type) throws IOException {
+            if (type.equals(INT) || type.equals(BOOLEAN)) {
+                out.writeByte(1);
+            } else {
+                out.writeByte(7);
+                out.writeShort(classRef(type));
+            }
+        }
+
+        private void push(final String type) {
+            stack.add(type.equals(BOOLEAN) ? INT : type);
+            maxStack = Math.max(maxStack, stack.size());
+        }
+
+        private void pop(final int count) {
+            for (var i = 0; i < count; ++i)
+                stack.remove(stack.size() - 1);
+        }
+
+        private void op(final int opcode) {
+            if (stack == null) {
+                throw new IllegalStateException("Emitting unreachable code.");
+            }
+            bytes.write(opcode);
+        }
+
+        private void u1(final int value) {
+            bytes.write(value);
+        }
+
+        private void u2(final int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.gustrb.lox;
+
+import java.util.List;
+
+/**
+ * Second execution engine, instead of walking the AST on every evaluation
+ * the resolved program is compiled once into a tree of ExprNode/StmtNode
+ * objects specialized on the operation they perform, which is then executed
+ */
+public class ClosureCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Interpreter interpreter;
+
+    public ClosureCompiler(final Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * Runs the statements on the globals of the Interpreter, a RuntimeError is left for the Lox session to report
+     */
+    public void interpret(final List<Stmt> statements) {
+        StmtNode.executeAll(compile(statements), interpreter.globals);
+    }
+
+    StmtNode[] compile(final List<Stmt> statements) {
+        final var nodes = new StmtNode[statements.size()];
+        for (var i = 0; i < nodes.length; ++i)
+            nodes[i] = compile(statements.get(i));
+        return nodes;
+    }
+
+    private StmtNode compile(final Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private ExprNode compile(final Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(final Expr.Assign expr) {
+        final var value = compile(expr.value);
+        if (expr.depth != -1) {
+            return new ExprNode.AssignLocal(expr.depth, expr.slot, value);
+        }
+        return new ExprNode.AssignGlobal(interpreter.globals, expr.name, value);
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(final Expr.Binary expr) {
+        final var left = compile(expr.left);
+        final var right = compile(expr.right);
+
+        switch (expr.operator.type) {
+            case GREATER: return new ExprNode.Greater(expr.operator, left, right);
+            case GREATER_EQUAL: return new ExprNode.GreaterEqual(expr.operator, left, right);
+            case LESS: return new ExprNode.Less(expr.operator, left, right);
+            case LESS_EQUAL: return new ExprNode.LessEqual(expr.operator, left, right);
+            case BANG_EQUAL: return new ExprNode.NotEqual(expr.operator, left, right);
+            case EQUAL_EQUAL: return new ExprNode.Equal(expr.operator, left, right);
+            case MINUS: return new ExprNode.Subtract(expr.operator, left, right);
+            case SLASH: return new ExprNode.Divide(expr.operator, left, right);
+            case STAR: return new ExprNode.Multiply(expr.operator, left, right);
+            case PLUS: return new ExprNode.Add(expr.operator, left, right);
+        }
+
+        // Unreachable, the parser doesn't build any other binary operator
+        return new ExprNode.Constant(null);
+    }
+
+    @Override
+    public ExprNode visitCallExpr(final Expr.Call expr) {
+        return compileCall(expr, false);
+    }
+
+    /**
+     * Calls in tail position complete with a TailCall instead of making the call, see Resolver
+     */
+    private ExprNode compileCall(final Expr.Call expr, final boolean tail) {
+        final var arguments = new ExprNode[expr.arguments.size()];
+        for (var i = 0; i < arguments.length; ++i)
+            arguments[i] = compile(expr.arguments.get(i));
+
+        if (expr.callee instanceof Expr.Get) {
+            final var get = (Expr.Get) expr.callee;
+            return new ExprNode.Invoke(interpreter, expr.paren, compile(get.object), get.name, arguments, tail);
+        }
+
+        return new ExprNode.Call(interpreter, expr.paren, compile(expr.callee), arguments, tail);
+    }
+
+    @Override
+    public ExprNode visitGetExpr(final Expr.Get expr) {
+        return new ExprNode.Get(compile(expr.object), expr.name);
+    }
+
+    @Override
+    public ExprNode visitSetExpr(final Expr.Set expr) {
+        return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value));
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(final Expr.Super expr) {
+        return new ExprNode.Super(expr.depth, expr.method);
+    }
+
+    @Override
+    public ExprNode visitThisExpr(final Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(final Expr.Grouping expr) {
+        // Groupings only matter for the parser, there is nothing left to run
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(final Expr.Literal expr) {
+        return new ExprNode.Constant(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(final Expr.Logical expr) {
+        final var left = compile(expr.left);
+        final var right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return new ExprNode.Or(left, right);
+        }
+        return new ExprNode.And(left, right);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(final Expr.Unary expr) {
+        final var right = compile(expr.right);
+        if (expr.operator.type == TokenType.BANG) {
+            return new ExprNode.Not(right);
+        }
+        return new ExprNode.Negate(expr.operator, right);
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(final Expr.Variable expr) {
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    private ExprNode variable(final Token name, final int depth, final int slot) {
+        if (depth != -1) {
+            return new ExprNode.Local(depth, slot);
+        }
+        return new ExprNode.Global(interpreter.globals, name);
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(final Stmt.Block stmt) {
+        final var statements = compile(stmt.statements);
+        return stmt.scoped ? new StmtNode.Block(statements) : new StmtNode.Sequence(statements);
+    }
+
+    @Override
+    public StmtNode visitClassStmt(final Stmt.Class stmt) {
+        final var methods = stmt.methods.toArray(new Stmt.Function[0]);
+        final var bodies = new StmtNode[methods.length][];
+        for (var i = 0; i < methods.length; ++i)
+            bodies[i] = compile(methods[i].body);
+
+        return new StmtNode.Class(
+                stmt.name,
+                stmt.slot,
+                stmt.superclass != null ? compile(stmt.superclass) : null,
+                stmt.superclass != null ? stmt.superclass.name : null,
+                methods,
+                bodies
+        );
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(final Stmt.Expression stmt) {
+        return new StmtNode.Expression(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(final Stmt.Function stmt) {
+        return new StmtNode.Function(stmt, compile(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitIfStmt(final Stmt.If stmt) {
+        return new StmtNode.If(
+                compile(stmt.condition),
+                compile(stmt.thenBranch),
+                stmt.elseBranch != null ? compile(stmt.elseBranch) : null
+        );
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(final Stmt.Print stmt) {
+        return new StmtNode.Print(compile(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(final Stmt.Return stmt) {
+        if (stmt.tail) return new StmtNode.Return(compileCall((Expr.Call) stmt.value, true));
+        return new StmtNode.Return(stmt.value != null ? compile(stmt.value) : null);
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(final Stmt.While stmt) {
+        return new StmtNode.While(compile(stmt.condition), compile(stmt.body));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(final Stmt.Var stmt) {
+        return new StmtNode.Var(
+                stmt.name.lexeme,
+                stmt.slot,
+                stmt.initializer != null ? compile(stmt.initializer) : null
+        );
+    }
+}
@@ -0,0 +1,31 @@
+package org.gustrb.lox;
+
+/**
+ * A LoxFunction whose body was compiled by the ClosureCompiler, it is called
+ * exactly like any other function so natives, classes and the Interpreter
+ * don't need to know which engine created it
+ */
+class CompiledFunction extends LoxFunction {
+    private final StmtNode[] body;
+
+    CompiledFunction(
+            final Stmt.Function declaration,
+            final Environment closure,
+            final boolean isInitializer,
+            final StmtNode[] body
+    ) {
+        super(declaration, closure, isInitializer);
+        this.body = body;
+    }
+
+    @Override
+    LoxFunction withClosure(final Environment closure) {
+        return new CompiledFunction(declaration, closure, isInitializer, body);
+    }
+
+    @Override
+    Object execute(final Interpreter interpreter, final Environment environment) {
+        final var completion = StmtNode.executeAll(body, environment);
+        return completion == Completion.NORMAL ? null : completion;
+    }
+}
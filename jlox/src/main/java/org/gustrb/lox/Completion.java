@@ -0,0 +1,14 @@
+package org.gustrb.lox;
+
+/**
+ * How a statement finished running, instead of unwinding the stack with
+ * exceptions. Executing a statement hands back NORMAL when control goes on
+ * to the next one, anything else is the value of a 'return' (or the
+ * TailCall it makes) which every enclosing statement passes up until it
+ * reaches the function being called.
+ */
+final class Completion {
+    static final Object NORMAL = new Object();
+
+    private Completion() {}
+}
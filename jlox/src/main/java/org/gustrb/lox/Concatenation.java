@@ -0,0 +1,76 @@
+package org.gustrb.lox;
+
+/**
+ * The result of a '+' on strings that got long enough to be worth not
+ * copying. A Lox string is either a String or one of these, which reads as
+ * the first length chars of a StringBuilder.
+ *
+ * Appending to a concatenation nothing else appended to yet goes on the
+ * same builder, since the chars it reads don't change. So a loop building
+ * text one piece at a time ("text = text + piece") copies each piece once
+ * instead of the whole text on every iteration. Appending to an older one
+ * (or prepending) starts a new builder.
+ *
+ * The text is only made into a String (once, then kept) where it is needed
+ * as a whole: printing, equality and anything else going through toString.
+ * Values never cross sessions, so there is no locking around the builder.
+ */
+final class Concatenation implements CharSequence {
+    // Shorter results are just Strings, copying them costs less than this
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder text;
+    private final int length;
+    private String flat;
+
+    private Concatenation(final StringBuilder text, final int length) {
+        this.text = text;
+        this.length = length;
+    }
+
+    static boolean isString(final Object value) {
+        return value instanceof String || value instanceof Concatenation;
+    }
+
+    /**
+     * Left followed by right, both already known to be Lox strings (see isString)
+     */
+    static Object concat(final Object left, final Object right) {
+        final var length = ((CharSequence) left).length() + ((CharSequence) right).length();
+        if (length < MIN_LENGTH) return left.toString() + right.toString();
+
+        if (left instanceof Concatenation) {
+            final var prefix = (Concatenation) left;
+            if (prefix.text.length() == prefix.length) {
+                prefix.text.append(right.toString());
+                return new Concatenation(prefix.text, length);
+            }
+        }
+
+        final var text = new StringBuilder(length * 2);
+        text.append((CharSequence) left).append(right.toString());
+        return new Concatenation(text, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index >= length) throw new IndexOutOfBoundsException(index);
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = text.substring(0, length);
+        return flat;
+    }
+}
@@ -1,26 +1,76 @@
 package org.gustrb.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
-    private final Map<String, Object> values = new HashMap<>();
-    public final Environment enclosing;
+    private static final Object[] NO_SLOTS = new Object[0];
+
+    // Only the global environment is keyed by name, every other scope
+    // stores its locals in the slots handed out by the Resolver
+    private final Map<String, Object> values;
+    private Object[] slots = NO_SLOTS;
+    private int count = 0;
+    // Only changes when a call frame is reused, see LoxFunction
+    public Environment enclosing;
 
     public Environment() {
         this.enclosing = null;
+        this.values = new HashMap<>();
     }
 
     public Environment(final Environment enclosing) {
         this.enclosing = enclosing;
+        this.values = null;
+
+        final var metrics = Metrics.current;
+        if (metrics != null) metrics.environment();
     }
 
     public void define(final String name, final Object value) {
-        values.put(name, value);
+        if (values != null) {
+            values.put(name, value);
+            return;
+        }
+
+        // Parameters (as well as 'this' and 'super') are defined in the same
+        // order the Resolver declared them, so the next free slot is always
+        // the one it assigned
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(4, count * 2));
+        }
+        slots[count++] = value;
+    }
+
+    /**
+     * Defines a declaration on the slot the Resolver gave it, or by its name
+     * when it is a global (slot -1). Blocks flattened into this environment
+     * get slots past the ones of the scope itself, and define their locals
+     * again every time they run (i.e. on every iteration of a loop)
+     */
+    public void defineAt(final int slot, final String name, final Object value) {
+        if (slot == -1) {
+            define(name, value);
+            return;
+        }
+
+        if (slot >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(Math.max(4, slots.length * 2), slot + 1));
+        }
+        slots[slot] = value;
+        if (slot >= count) count = slot + 1;
+    }
+
+    /**
+     * Whether this is the global environment and it already has a variable with that name
+     */
+    public boolean contains(final String name) {
+        return values != null && values.containsKey(name);
     }
 
     public void assign(final Token name, final Object value) {
-        if (values.containsKey(name.lexeme)) {
+        if (values != null && values.containsKey(name.lexeme)) {
             values.put(name.lexeme, value);
             return;
         }
@@ -34,7 +84,7 @@ public class Environment {
     }
 
     public Object get(final Token name) {
-        if (values.containsKey(name.lexeme)) {
+        if (values != null && values.containsKey(name.lexeme)) {
             return values.get(name.lexeme);
         }
 
@@ -45,12 +95,26 @@ public class Environment {
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    public Object getAt(final int distance, final String name) {
-        return ancestor(distance).values.get(name);
+    /**
+     * Empties a call frame no closure captured once its call is over, so it
+     * doesn't keep the values alive and can be used for another call
+     */
+    void release() {
+        Arrays.fill(slots, 0, count, null);
+        count = 0;
+        enclosing = null;
+    }
+
+    void reuse(final Environment enclosing) {
+        this.enclosing = enclosing;
+    }
+
+    public Object getAt(final int distance, final int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    public void assignAt(final int distance, final Token name, final Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    public void assignAt(final int distance, final int slot, final Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 
     private Environment ancestor(final int distance) {
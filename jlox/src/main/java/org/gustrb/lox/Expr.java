@@ -29,6 +29,8 @@ abstract class Expr {
         }
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot = -1;
     }
     static class Binary extends Expr {
         public Binary(Expr left, Token operator, Expr right) {
@@ -100,6 +102,7 @@ abstract class Expr {
         }
         final Token keyword;
         final Token method;
+        int depth = -1;
     }
     static class This extends Expr {
         public This(Token keyword) {
@@ -111,6 +114,8 @@ abstract class Expr {
             return visitor.visitThisExpr(this);
         }
         final Token keyword;
+        int depth = -1;
+        int slot = -1;
     }
     static class Grouping extends Expr {
         public Grouping(Expr expression) {
@@ -172,6 +177,8 @@ abstract class Expr {
             return visitor.visitVariableExpr(this);
         }
         final Token name;
+        int depth = -1;
+        int slot = -1;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,613 @@
+package org.gustrb.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An expression already compiled by the ClosureCompiler, every subclass
+ * handles a single kind of operation so the JIT gets to profile (and inline)
+ * each one of them on its own instead of going through a single big visitor
+ */
+abstract class ExprNode {
+    abstract Object evaluate(Environment environment);
+
+    /**
+     * Whether this node always evaluates to a number (or fails on its own),
+     * in that case evaluateNumber can be used instead of evaluate
+     */
+    boolean isNumber() {
+        return false;
+    }
+
+    /**
+     * Same as evaluate for the nodes where isNumber holds, without boxing the result
+     */
+    double evaluateNumber(final Environment environment) {
+        return (double) evaluate(environment);
+    }
+
+    static final class Constant extends ExprNode {
+        private final Object value;
+        private final double number;
+
+        Constant(final Object value) {
+            this.value = value;
+            this.number = value instanceof Double ? (double) value : 0;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return value;
+        }
+
+        @Override
+        boolean isNumber() {
+            return value instanceof Double;
+        }
+
+        @Override
+        double evaluateNumber(final Environment environment) {
+            return number;
+        }
+    }
+
+    static final class Local extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        Local(final int depth, final int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return environment.getAt(depth, slot);
+        }
+    }
+
+    static final class Global extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+
+        Global(final Environment globals, final Token name) {
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return globals.get(name);
+        }
+    }
+
+    static final class AssignLocal extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private final ExprNode value;
+
+        AssignLocal(final int depth, final int slot, final ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var val = value.evaluate(environment);
+            environment.assignAt(depth, slot, val);
+            return val;
+        }
+    }
+
+    static final class AssignGlobal extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+        private final ExprNode value;
+
+        AssignGlobal(final Environment globals, final Token name, final ExprNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var val = value.evaluate(environment);
+            globals.assign(name, val);
+            return val;
+        }
+    }
+
+    static final class Not extends ExprNode {
+        private final ExprNode right;
+
+        Not(final ExprNode right) {
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return !Interpreter.isTruthy(right.evaluate(environment));
+        }
+    }
+
+    static final class Negate extends ExprNode {
+        private final Token operator;
+        private final ExprNode right;
+
+        Negate(final Token operator, final ExprNode right) {
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return Numbers.box(evaluateNumber(environment));
+        }
+
+        @Override
+        boolean isNumber() {
+            return true;
+        }
+
+        @Override
+        double evaluateNumber(final Environment environment) {
+            if (right.isNumber()) return -right.evaluateNumber(environment);
+
+            final var value = right.evaluate(environment);
+            Interpreter.checkNumberOperand(operator, value);
+            return -(double) value;
+        }
+    }
+
+    static final class And extends ExprNode {
+        private final ExprNode left;
+        private final ExprNode right;
+
+        And(final ExprNode left, final ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var value = left.evaluate(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(environment);
+        }
+    }
+
+    static final class Or extends ExprNode {
+        private final ExprNode left;
+        private final ExprNode right;
+
+        Or(final ExprNode left, final ExprNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var value = left.evaluate(environment);
+            if (Interpreter.isTruthy(value)) return value;
+            return right.evaluate(environment);
+        }
+    }
+
+    /**
+     * Base for the binary operators. Each subclass evaluates its own operands
+     * instead of sharing a single evaluate, that way every operator keeps its
+     * own profile for the operand call sites rather than a megamorphic one.
+     *
+     * When both operands are known to be numbers they are evaluated through
+     * evaluateNumber, so nested arithmetic never boxes its partial results
+     */
+    abstract static class Binary extends ExprNode {
+        final Token operator;
+        final ExprNode left;
+        final ExprNode right;
+        final boolean numeric;
+
+        Binary(final Token operator, final ExprNode left, final ExprNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.numeric = left.isNumber() && right.isNumber();
+        }
+    }
+
+    static final class Add extends Binary {
+        Add(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            if (numeric) return Numbers.box(evaluateNumber(environment));
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            if (left instanceof Double && right instanceof Double) {
+                return Numbers.box((double) left + (double) right);
+            }
+
+            if (Concatenation.isString(left) && Concatenation.isString(right)) {
+                return Concatenation.concat(left, right);
+            }
+
+            throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+        }
+
+        @Override
+        boolean isNumber() {
+            return numeric;
+        }
+
+        @Override
+        double evaluateNumber(final Environment environment) {
+            return left.evaluateNumber(environment) + right.evaluateNumber(environment);
+        }
+    }
+
+    static final class Subtract extends Binary {
+        Subtract(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return Numbers.box(evaluateNumber(environment));
+        }
+
+        @Override
+        boolean isNumber() {
+            return true;
+        }
+
+        @Override
+        double evaluateNumber(final Environment environment) {
+            if (numeric) return left.evaluateNumber(environment) - right.evaluateNumber(environment);
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            Interpreter.checkNumberOperands(operator, left, right);
+            return (double) left - (double) right;
+        }
+    }
+
+    static final class Multiply extends Binary {
+        Multiply(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return Numbers.box(evaluateNumber(environment));
+        }
+
+        @Override
+        boolean isNumber() {
+            return true;
+        }
+
+        @Override
+        double evaluateNumber(final Environment environment) {
+            if (numeric) return left.evaluateNumber(environment) * right.evaluateNumber(environment);
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            Interpreter.checkNumberOperands(operator, left, right);
+            return (double) left * (double) right;
+        }
+    }
+
+    static final class Divide extends Binary {
+        Divide(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            return Numbers.box(evaluateNumber(environment));
+        }
+
+        @Override
+        boolean isNumber() {
+            return true;
+        }
+
+        @Override
+        double evaluateNumber(final Environment environment) {
+            if (numeric) return left.evaluateNumber(environment) / right.evaluateNumber(environment);
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            Interpreter.checkNumberOperands(operator, left, right);
+            return (double) left / (double) right;
+        }
+    }
+
+    static final class Greater extends Binary {
+        Greater(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            if (numeric) return left.evaluateNumber(environment) > right.evaluateNumber(environment);
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            Interpreter.checkNumberOperands(operator, left, right);
+            return (double) left > (double) right;
+        }
+    }
+
+    static final class GreaterEqual extends Binary {
+        GreaterEqual(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            if (numeric) return left.evaluateNumber(environment) >= right.evaluateNumber(environment);
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            Interpreter.checkNumberOperands(operator, left, right);
+            return (double) left >= (double) right;
+        }
+    }
+
+    static final class Less extends Binary {
+        Less(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            if (numeric) return left.evaluateNumber(environment) < right.evaluateNumber(environment);
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            Interpreter.checkNumberOperands(operator, left, right);
+            return (double) left < (double) right;
+        }
+    }
+
+    static final class LessEqual extends Binary {
+        LessEqual(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            if (numeric) return left.evaluateNumber(environment) <= right.evaluateNumber(environment);
+
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            Interpreter.checkNumberOperands(operator, left, right);
+            return (double) left <= (double) right;
+        }
+    }
+
+    static final class Equal extends Binary {
+        Equal(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            return Interpreter.isEqual(left, right);
+        }
+    }
+
+    static final class NotEqual extends Binary {
+        NotEqual(final Token operator, final ExprNode left, final ExprNode right) {
+            super(operator, left, right);
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var left = this.left.evaluate(environment);
+            final var right = this.right.evaluate(environment);
+            return !Interpreter.isEqual(left, right);
+        }
+    }
+
+    static final class Call extends ExprNode {
+        private final Interpreter interpreter;
+        private final Token paren;
+        private final ExprNode callee;
+        private final ExprNode[] arguments;
+        // Returned right away, so calls of a LoxFunction complete with a TailCall instead
+        private final boolean tail;
+
+        Call(
+                final Interpreter interpreter,
+                final Token paren,
+                final ExprNode callee,
+                final ExprNode[] arguments,
+                final boolean tail
+        ) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.callee = callee;
+            this.arguments = arguments;
+            this.tail = tail;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var function = callee.evaluate(environment);
+
+            // Same as on the Interpreter, tail calls keep their arguments in a list
+            final var count = arguments.length;
+            if (!tail && count <= LoxCallable.MAX_FIXED_ARGUMENTS) {
+                final var a = count > 0 ? arguments[0].evaluate(environment) : null;
+                final var b = count > 1 ? arguments[1].evaluate(environment) : null;
+                final var c = count > 2 ? arguments[2].evaluate(environment) : null;
+                return interpreter.callFixed(interpreter.checkCallable(function, count, paren), count, a, b, c);
+            }
+
+            final List<Object> values = new ArrayList<>(count);
+            for (final var argument : arguments) {
+                values.add(argument.evaluate(environment));
+            }
+
+            final var callable = interpreter.checkCallable(function, count, paren);
+            if (tail && callable instanceof LoxFunction) {
+                final var target = (LoxFunction) callable;
+                return new TailCall(target, target.closure, values);
+            }
+            return callable.call(interpreter, values);
+        }
+    }
+
+    /**
+     * A call of the form 'object.method(...)', the method gets 'this' straight
+     * on its call frame instead of being bound to the instance first
+     */
+    static final class Invoke extends ExprNode {
+        private final Interpreter interpreter;
+        private final Token paren;
+        private final ExprNode object;
+        private final Token name;
+        private final ExprNode[] arguments;
+        // Same as on Call
+        private final boolean tail;
+
+        Invoke(
+                final Interpreter interpreter,
+                final Token paren,
+                final ExprNode object,
+                final Token name,
+                final ExprNode[] arguments,
+                final boolean tail
+        ) {
+            this.interpreter = interpreter;
+            this.paren = paren;
+            this.object = object;
+            this.name = name;
+            this.arguments = arguments;
+            this.tail = tail;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var obj = object.evaluate(environment);
+            if (!(obj instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have properties.");
+            }
+
+            // Fields shadow methods, so only look for one if there's no such field
+            final var instance = (LoxInstance) obj;
+            final var field = instance.field(name.lexeme);
+            final var method = field == LoxInstance.NO_FIELD ? instance.method(name) : null;
+
+            final var count = arguments.length;
+            if (!tail && count <= LoxCallable.MAX_FIXED_ARGUMENTS) {
+                final var a = count > 0 ? arguments[0].evaluate(environment) : null;
+                final var b = count > 1 ? arguments[1].evaluate(environment) : null;
+                final var c = count > 2 ? arguments[2].evaluate(environment) : null;
+                if (method == null) {
+                    return interpreter.callFixed(interpreter.checkCallable(field, count, paren), count, a, b, c);
+                }
+
+                Interpreter.checkArity(method, count, paren);
+                interpreter.at(paren);
+                return method.callMethod(interpreter, instance, count, a, b, c);
+            }
+
+            final List<Object> values = new ArrayList<>(count);
+            for (final var argument : arguments) {
+                values.add(argument.evaluate(environment));
+            }
+
+            final LoxCallable callable = method != null ? method : interpreter.checkCallable(field, count, paren);
+            if (method != null) {
+                Interpreter.checkArity(method, count, paren);
+                interpreter.at(paren);
+            }
+
+            if (tail && method != null) return new TailCall(method, method.methodClosure(instance), values);
+            if (tail && callable instanceof LoxFunction) {
+                final var target = (LoxFunction) callable;
+                return new TailCall(target, target.closure, values);
+            }
+
+            if (method != null) return method.callMethod(interpreter, instance, values);
+            return callable.call(interpreter, values);
+        }
+    }
+
+    static final class Get extends ExprNode {
+        private final ExprNode object;
+        private final Token name;
+
+        Get(final ExprNode object, final Token name) {
+            this.object = object;
+            this.name = name;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var obj = object.evaluate(environment);
+            if (obj instanceof LoxInstance) {
+                return ((LoxInstance) obj).get(name);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        }
+    }
+
+    static final class Set extends ExprNode {
+        private final ExprNode object;
+        private final Token name;
+        private final ExprNode value;
+
+        Set(final ExprNode object, final Token name, final ExprNode value) {
+            this.object = object;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var obj = object.evaluate(environment);
+            if (!(obj instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields");
+            }
+
+            final var val = value.evaluate(environment);
+            ((LoxInstance) obj).set(name, val);
+            return val;
+        }
+    }
+
+    static final class Super extends ExprNode {
+        private final int depth;
+        private final Token method;
+
+        Super(final int depth, final Token method) {
+            this.depth = depth;
+            this.method = method;
+        }
+
+        @Override
+        Object evaluate(final Environment environment) {
+            final var superclass = (LoxClass) environment.getAt(depth, 0);
+            final var object = (LoxInstance) environment.getAt(depth - 1, 0);
+            final var function = superclass.findMethod(method.lexeme);
+
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+            }
+
+            return function.bind(object);
+        }
+    }
+}
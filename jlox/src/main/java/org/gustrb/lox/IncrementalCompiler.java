@@ -0,0 +1,206 @@
+package org.gustrb.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The front end of a buffer that keeps being edited and compiled again, the
+ * REPL or an editor running a session.
+ *
+ * The buffer is kept split into its top level statements, each with the
+ * range of the buffer it was scanned from and the trees it was parsed and
+ * resolved into. A new version of the buffer is compared with the last one:
+ * the statements before the first changed character keep their trees, so do
+ * the ones after the last changed character when the edit didn't add or
+ * remove lines (the tokens on the trees carry their line, for the errors).
+ * Only the changed range is scanned again, from the end of the last
+ * statement kept before it up to the first kept one after it, and only the
+ * statements in there are parsed and resolved. Top level names are globals,
+ * looked up by name, so each statement resolves on its own.
+ *
+ * Only the trees of the last buffer are kept, whatever was edited away is
+ * dropped along with its Resolver annotations.
+ */
+final class IncrementalCompiler {
+    /**
+     * A top level statement (an if with its else counts as one) and where it is on the buffer
+     */
+    private static final class Chunk {
+        // Offsets of its first character and right past its last one
+        final int start;
+        final int end;
+        // Line of its last token, where scanning goes on from after it
+        final int line;
+        final List<Stmt> statements;
+
+        Chunk(final int start, final int end, final int line, final List<Stmt> statements) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.statements = statements;
+        }
+
+        Chunk shift(final int delta) {
+            return delta == 0 ? this : new Chunk(start + delta, end + delta, line, statements);
+        }
+    }
+
+    /**
+     * The tokens of one statement, read as if they were a whole script
+     */
+    private static final class Tokens implements TokenSource {
+        private final List<Token> tokens;
+        private int current = 0;
+
+        Tokens(final List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        @Override
+        public TokenType peekType() {
+            return tokens.get(current).type;
+        }
+
+        @Override
+        public Token peek() {
+            return tokens.get(current);
+        }
+
+        @Override
+        public TokenType previousType() {
+            return tokens.get(current - 1).type;
+        }
+
+        @Override
+        public Token previous() {
+            return tokens.get(current - 1);
+        }
+
+        @Override
+        public void advance() {
+            if (peekType() != TokenType.EOF) current++;
+        }
+    }
+
+    private final Lox lox;
+    // The last buffer compiled without errors, and its statements
+    private String buffer = "";
+    private List<Chunk> chunks = new ArrayList<>();
+    // How many statements the last compile took from the one before
+    private int reused = 0;
+
+    IncrementalCompiler(final Lox lox) {
+        this.lox = lox;
+    }
+
+    /**
+     * Same as Lox.compile, returns null if the buffer had any error
+     */
+    List<Stmt> compile(final CharSequence edited) {
+        final var text = edited.toString();
+        final var oldLength = buffer.length();
+        final var newLength = text.length();
+
+        var prefix = 0;
+        final var shortest = Math.min(oldLength, newLength);
+        while (prefix < shortest && buffer.charAt(prefix) == text.charAt(prefix)) prefix++;
+        var suffix = 0;
+        while (suffix < shortest - prefix
+                && buffer.charAt(oldLength - 1 - suffix) == text.charAt(newLength - 1 - suffix)) suffix++;
+
+        final List<Chunk> compiled = new ArrayList<>();
+
+        // The statements before the edit
+        var head = 0;
+        while (head < chunks.size() && chunks.get(head).end <= prefix) head++;
+
+        // The statements after it, only when they stay on the same lines
+        final var delta = newLength - oldLength;
+        var tail = chunks.size();
+        if (lines(buffer, prefix, oldLength - suffix) == lines(text, prefix, newLength - suffix)) {
+            while (tail > head && chunks.get(tail - 1).start >= oldLength - suffix) tail--;
+        }
+
+        var scanner = scanner(text, head);
+        var token = scanner.nextToken();
+        if (token.type == TokenType.ELSE && head > 0) {
+            // The edit gave the last statement before it an 'else', it is scanned again
+            if (lox.hadError()) return null;
+            scanner = scanner(text, --head);
+            token = scanner.nextToken();
+        }
+        compiled.addAll(chunks.subList(0, head));
+        var kept = head;
+        var start = scanner.tokenStart();
+        while (token.type != TokenType.EOF) {
+            // Caught up with the statements after the edit, they are all kept
+            while (tail < chunks.size() && chunks.get(tail).start + delta < start) tail++;
+            if (tail < chunks.size() && chunks.get(tail).start + delta == start) {
+                for (var i = tail; i < chunks.size(); ++i)
+                    compiled.add(chunks.get(i).shift(delta));
+                kept += chunks.size() - tail;
+                break;
+            }
+
+            // Right after the ';' or '}' that closes it, unless an 'else' follows
+            final List<Token> tokens = new ArrayList<>();
+            var end = start;
+            var last = token.line;
+            var depth = 0;
+            while (token.type != TokenType.EOF) {
+                tokens.add(token);
+                end = scanner.tokenEnd();
+                last = token.line;
+                final var type = token.type;
+                if (type == TokenType.LEFT_PAREN || type == TokenType.LEFT_BRACE) depth++;
+                if (type == TokenType.RIGHT_PAREN || type == TokenType.RIGHT_BRACE) depth--;
+
+                token = scanner.nextToken();
+                final var closes = type == TokenType.SEMICOLON || type == TokenType.RIGHT_BRACE;
+                if (closes && depth <= 0 && token.type != TokenType.ELSE) break;
+            }
+            tokens.add(new Token(TokenType.EOF, "", null, last));
+
+            final var statements = new Parser(new Tokens(tokens), lox).parse();
+            // Same as compile, nothing gets resolved once there are syntax errors
+            if (!lox.hadError()) new Resolver(lox).resolve(statements);
+            compiled.add(new Chunk(start, end, last, statements));
+            start = scanner.tokenStart();
+        }
+
+        // A buffer with errors isn't kept, the next one is compared with the last good one
+        if (lox.hadError()) return null;
+
+        final List<Stmt> program = new ArrayList<>();
+        for (final var chunk : compiled)
+            program.addAll(chunk.statements);
+        reused = kept;
+        buffer = text;
+        chunks = compiled;
+        return program;
+    }
+
+    /**
+     * A Scanner going on from the end of the first count statements of the last buffer
+     */
+    private Scanner scanner(final String text, final int count) {
+        if (count == 0) return new Scanner(text, lox);
+
+        final var last = chunks.get(count - 1);
+        return new Scanner(text, lox, last.end, last.line);
+    }
+
+    /**
+     * How many top level statements the last compile took as they were from the one before
+     */
+    int reused() {
+        return reused;
+    }
+
+    private static int lines(final String text, final int from, final int to) {
+        var lines = 0;
+        for (var i = from; i < to; ++i)
+            if (text.charAt(i) == '\n') lines++;
+        return lines;
+    }
+}
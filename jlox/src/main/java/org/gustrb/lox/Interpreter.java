@@ -6,10 +6,11 @@ import java.util.List;
 import java.util.Map;
 
 public class Interpreter implements Expr.Visitor<Object>,
-        Stmt.Visitor<Void> {
-    private final Map<Expr, Integer> locals = new HashMap<>();
+        Stmt.Visitor<Object> {
     final Environment globals = new Environment();
     private Environment environment = globals;
+    // Null unless running with --profile
+    Profiler profiler;
 
     public Interpreter() {
         // TODO: Add more functions and add them into their own, stdlib package
@@ -27,13 +28,12 @@ public class Interpreter implements Expr.Visitor<Object>,
         });
     }
 
+    /**
+     * Runs the statements on the globals, a RuntimeError is left for the Lox session to report
+     */
     public void interpret(List<Stmt> statements) {
-        try {
-            for (final var statement : statements)
-                execute(statement);
-        } catch(RuntimeError e) {
-            Lox.runtimeError(e);
-        }
+        for (final var statement : statements)
+            execute(statement);
     }
 
     @Override
@@ -65,7 +65,7 @@ public class Interpreter implements Expr.Visitor<Object>,
             case BANG:  return !isTruthy(right);
             case MINUS:
                 checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                return Numbers.box(-(double) right);
         }
 
         // Unreachable, I hope
@@ -74,24 +74,31 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookupVariable(expr.name, expr);
+        at(expr.name);
+        return lookupVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookupVariable(final Token name, final Expr expr) {
-        final var distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookupVariable(final Token name, final int depth, final int slot) {
+        if (depth != -1) {
+            return environment.getAt(depth, slot);
         }
 
         return globals.get(name);
     }
 
-    private void checkNumberOperand(final Token operator, final Object operand) {
+    /**
+     * Tells the Profiler, when there is one, the line the running function is at
+     */
+    void at(final Token token) {
+        if (profiler != null) profiler.line(token.line);
+    }
+
+    static void checkNumberOperand(final Token operator, final Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(final Token operator, final Object left, final Object right) {
+    static void checkNumberOperands(final Token operator, final Object left, final Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers");
@@ -101,6 +108,7 @@ public class Interpreter implements Expr.Visitor<Object>,
     public Object visitBinaryExpr(final Expr.Binary expr) {
         final var left = evaluate(expr.left);
         final var right = evaluate(expr.right);
+        at(expr.operator);
 
         switch (expr.operator.type) {
             case GREATER:
@@ -123,25 +131,25 @@ public class Interpreter implements Expr.Visitor<Object>,
 
             case MINUS:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left - (double) right;
+                return Numbers.box((double) left - (double) right);
 
             case SLASH:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left / (double) right;
+                return Numbers.box((double) left / (double) right);
 
             case STAR:
                 checkNumberOperands(expr.operator, left, right);
-                return (double) left * (double) right;
+                return Numbers.box((double) left * (double) right);
 
             case PLUS:
                 // We are adding 2 numbers
                 if (left instanceof Double && right instanceof Double) {
-                    return (double) left + (double) right;
+                    return Numbers.box((double) left + (double) right);
                 }
 
                 // If both of them are strings, concatenate em
-                if (left instanceof String && right instanceof String) {
-                    return (String) left + (String) right;
+                if (Concatenation.isString(left) && Concatenation.isString(right)) {
+                    return Concatenation.concat(left, right);
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings");
@@ -152,37 +160,130 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        return call(expr, false);
+    }
+
+    /**
+     * Makes the call, or when it is in tail position and calls a LoxFunction,
+     * hands back the TailCall for the function returning it to make
+     */
+    private Object call(final Expr.Call expr, final boolean tail) {
+        if (expr.callee instanceof Expr.Get) {
+            return invokeMethod(expr, (Expr.Get) expr.callee, tail);
+        }
+
         final var callee = evaluate(expr.callee);
-        final List<Object> arguments = new ArrayList<>();
 
+        // Tail calls keep their arguments in the TailCall, so they still need the list
+        final var count = expr.arguments.size();
+        if (!tail && count <= LoxCallable.MAX_FIXED_ARGUMENTS) {
+            final var a = count > 0 ? evaluate(expr.arguments.get(0)) : null;
+            final var b = count > 1 ? evaluate(expr.arguments.get(1)) : null;
+            final var c = count > 2 ? evaluate(expr.arguments.get(2)) : null;
+            return callFixed(checkCallable(callee, count, expr.paren), count, a, b, c);
+        }
+
+        final List<Object> arguments = new ArrayList<>(count);
+        for (final var argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+
+        return call(callee, arguments, expr.paren, tail);
+    }
+
+    /**
+     * Calls of the form 'object.method(...)', the method gets 'this' straight
+     * on its call frame instead of being bound to the instance first
+     */
+    private Object invokeMethod(final Expr.Call expr, final Expr.Get get, final boolean tail) {
+        final var obj = evaluate(get.object);
+        if (!(obj instanceof LoxInstance)) {
+            throw new RuntimeError(get.name, "Only instances have properties.");
+        }
+
+        // Fields shadow methods, so only look for one if there's no such field
+        final var instance = (LoxInstance) obj;
+        final var field = instance.field(get.name.lexeme);
+        final var method = field == LoxInstance.NO_FIELD ? instance.method(get.name) : null;
+
+        final var count = expr.arguments.size();
+        if (!tail && count <= LoxCallable.MAX_FIXED_ARGUMENTS) {
+            final var a = count > 0 ? evaluate(expr.arguments.get(0)) : null;
+            final var b = count > 1 ? evaluate(expr.arguments.get(1)) : null;
+            final var c = count > 2 ? evaluate(expr.arguments.get(2)) : null;
+            if (method == null) return callFixed(checkCallable(field, count, expr.paren), count, a, b, c);
+
+            checkArity(method, count, expr.paren);
+            at(expr.paren);
+            return method.callMethod(this, instance, count, a, b, c);
+        }
+
+        final List<Object> arguments = new ArrayList<>(count);
         for (final var argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
 
+        if (method == null) return call(field, arguments, expr.paren, tail);
+
+        checkArity(method, count, expr.paren);
+        if (tail) return new TailCall(method, method.methodClosure(instance), arguments);
+        return method.callMethod(this, instance, arguments);
+    }
+
+    private Object call(final Object callee, final List<Object> arguments, final Token paren, final boolean tail) {
+        final var function = checkCallable(callee, arguments.size(), paren);
+
+        if (tail && function instanceof LoxFunction) {
+            final var target = (LoxFunction) function;
+            return new TailCall(target, target.closure, arguments);
+        }
+        return function.call(this, arguments);
+    }
+
+    /**
+     * Calls with up to three arguments, already checked against the arity,
+     * through the LoxCallable entry points that take them without a List
+     */
+    Object callFixed(final LoxCallable function, final int count, final Object a, final Object b, final Object c) {
+        switch (count) {
+            case 0: return function.call0(this);
+            case 1: return function.call1(this, a);
+            case 2: return function.call2(this, a, b);
+            default: return function.call3(this, a, b, c);
+        }
+    }
+
+    /**
+     * The callee as a LoxCallable taking that many arguments, the call is about to be made
+     */
+    LoxCallable checkCallable(final Object callee, final int count, final Token paren) {
+        at(paren);
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
 
-        LoxCallable function = (LoxCallable) callee;
+        final var function = (LoxCallable) callee;
+        checkArity(function, count, paren);
+        return function;
+    }
 
-        if (arguments.size() != function.arity()) {
+    static void checkArity(final LoxCallable function, final int count, final Token paren) {
+        if (count != function.arity()) {
             throw new RuntimeError(
-                    expr.paren,
-                    "Expected " + function.arity() + " arguments but got " + arguments.size() + "."
+                    paren,
+                    "Expected " + function.arity() + " arguments but got " + count + "."
             );
         }
-
-        return function.call(this, arguments);
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
 
         if (stmt.superclass != null) {
@@ -192,8 +293,6 @@ public class Interpreter implements Expr.Visitor<Object>,
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
-
         if (stmt.superclass != null) {
             environment = new Environment(environment);
             environment.define("super", superclass);
@@ -211,68 +310,75 @@ public class Interpreter implements Expr.Visitor<Object>,
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name, klass);
-        return null;
+        // Methods only look the class up when they are called, so it is
+        // fine to define it once it is complete
+        environment.defineAt(stmt.slot, stmt.name.lexeme, klass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
+    public Object visitFunctionStmt(Stmt.Function stmt) {
         final var function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        environment.defineAt(stmt.slot, stmt.name.lexeme, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(final Stmt.While stmt) {
+    public Object visitWhileStmt(final Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            final var completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) return completion;
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         final var value = evaluate(stmt.expression);
         System.out.println(stringfy(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        at(stmt.keyword);
+        if (stmt.tail) return call((Expr.Call) stmt.value, true);
+
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        // Abusing java's exception to unwind the stack of visitors :0
-        throw new Return(value);
+        // The value itself is the completion, every enclosing statement
+        // hands it back up to the call
+        return value;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
+        at(stmt.name);
         final var value = stmt.initializer != null
                 ? evaluate(stmt.initializer)
                 : null;
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        environment.defineAt(stmt.slot, stmt.name.lexeme, value);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
+        at(expr.name);
         final var val = evaluate(expr.value);
-        final Integer distance = locals.get(expr);
-
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, val);
+        if (expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, val);
         } else {
             globals.assign(expr.name, val);
         }
@@ -305,14 +411,16 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitThisExpr(final Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
+        return lookupVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitSuperExpr(final Expr.Super expr) {
-        int distance = locals.get(expr);
-        final var superclass = (LoxClass) environment.getAt(distance, "super");
-        final var object = (LoxInstance) environment.getAt(distance -  1, "this");
+        // Both 'super' and 'this' are the only locals of their scopes, so they
+        // always live on the first slot
+        final int distance = expr.depth;
+        final var superclass = (LoxClass) environment.getAt(distance, 0);
+        final var object = (LoxInstance) environment.getAt(distance -  1, 0);
         final var method = superclass.findMethod(expr.method.lexeme);
 
         if (method == null) {
@@ -322,21 +430,25 @@ public class Interpreter implements Expr.Visitor<Object>,
         return method.bind(object);
     }
 
-    private boolean isTruthy(final Object object) {
+    static boolean isTruthy(final Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
 
         return true;
     }
 
-    private boolean isEqual(final Object a, final Object b) {
+    static boolean isEqual(final Object a, final Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
+        // Strings built by '+' are equal to the ones with the same text
+        if (a instanceof Concatenation || b instanceof Concatenation) {
+            return Concatenation.isString(a) && Concatenation.isString(b) && a.toString().equals(b.toString());
+        }
         return a.equals(b);
     }
 
-    private String stringfy(final Object object) {
+    static String stringfy(final Object object) {
         if (object == null) return "nil";
         if (object instanceof Double) {
             var text = object.toString();
@@ -352,28 +464,30 @@ public class Interpreter implements Expr.Visitor<Object>,
         return expr.accept(this);
     }
 
-    private void execute(final Stmt stmt) {
-        stmt.accept(this);
+    private Object execute(final Stmt stmt) {
+        return stmt.accept(this);
     }
 
     @Override
-    public Void visitBlockStmt(final Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(final Stmt.Block stmt) {
+        return executeBlock(stmt.statements, stmt.scoped ? new Environment(environment) : environment);
     }
 
-    public void executeBlock(final List<Stmt> statements, final Environment environment) {
+    /**
+     * Runs the statements on that environment, stopping at the first one that
+     * doesn't complete normally, see Completion
+     */
+    public Object executeBlock(final List<Stmt> statements, final Environment environment) {
         final var previous = this.environment;
         try {
             this.environment = environment;
-            for (final var stmt : statements)
-                execute(stmt);
+            for (final var stmt : statements) {
+                final var completion = execute(stmt);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
-
-    public void resolve(final Expr expr, final int depth) {
-        locals.put(expr, depth);
-    }
 }
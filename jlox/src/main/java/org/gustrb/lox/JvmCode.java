@@ -0,0 +1,9 @@
+package org.gustrb.lox;
+
+/**
+ * Implemented by the hidden classes the JvmCompiler generates, one for the
+ * top level of a script and one per function body
+ */
+interface JvmCode {
+    Object run(Interpreter interpreter, Environment environment);
+}
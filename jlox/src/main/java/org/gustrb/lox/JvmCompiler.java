@@ -0,0 +1,591 @@
+package org.gustrb.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Third execution engine, compiles the resolved program into JVM bytecode so
+ * HotSpot gets to compile the Lox code itself. The top level of a script and
+ * every function body become their own hidden class implementing JvmCode.
+ *
+ * Variables still live in Environments, so compiled and interpreted code can
+ * call each other freely. Whatever can't be compiled (i.e. a top level
+ * 'return', or a body too large for a single JVM method) is left for the
+ * Interpreter, one function at a time.
+ */
+public class JvmCompiler {
+    private static final String PACKAGE = "org/gustrb/lox/";
+    private static final String RUNTIME = PACKAGE + "JvmRuntime";
+    private static final String ENVIRONMENT = PACKAGE + "Environment";
+    private static final String INTERPRETER = PACKAGE + "Interpreter";
+    private static final String TOKEN = PACKAGE + "Token";
+    private static final String CODE = PACKAGE + "JvmCode";
+    private static final String LINKER = PACKAGE + "LoxLinker";
+    private static final String OBJECT = ClassAssembler.OBJECT;
+
+    private static final String RUN_DESCRIPTOR = "(L" + INTERPRETER + ";L" + ENVIRONMENT + ";)L" + OBJECT + ";";
+    private static final String BINARY_DESCRIPTOR = "(L" + OBJECT + ";L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";";
+    // Bootstraps take the indexes of their tokens on the K array as static arguments
+    private static final String BOOTSTRAP_PARAMETERS = "Ljava/lang/invoke/MethodHandles$Lookup;"
+            + "Ljava/lang/String;Ljava/lang/invoke/MethodType;";
+    // Calls with more arguments than this go through an array instead of an invokedynamic site
+    private static final int MAX_DYNAMIC_ARGUMENTS = 8;
+    private static final String COMPARISON_DESCRIPTOR = "(L" + OBJECT + ";L" + OBJECT + ";L" + TOKEN + ";)Z";
+
+    // Only control flow for the fallback to the Interpreter, one stackless instance does
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final Unsupported INSTANCE = new Unsupported();
+
+        private Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    public JvmCompiler(final Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    public void interpret(final List<Stmt> statements) {
+        final var script = compile("LoxScript", statements, true);
+        if (script == null) {
+            interpreter.interpret(statements);
+            return;
+        }
+
+        script.run(interpreter, interpreter.globals);
+    }
+
+    /**
+     * Returns null when the function has to be left for the Interpreter
+     */
+    private JvmCode compile(final Stmt.Function function) {
+        return compile("LoxFn$" + function.name.lexeme, function.body, false);
+    }
+
+    private JvmCode compile(final String name, final List<Stmt> body, final boolean topLevel) {
+        try {
+            final var generator = new Generator(PACKAGE + name, topLevel);
+            generator.statements(body);
+            return generator.define();
+        } catch (Unsupported | IllegalStateException | LinkageError | ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private class Generator implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private static final int INTERPRETER_LOCAL = 1;
+
+        private final ClassAssembler assembler;
+        private final ClassAssembler.Code code;
+        private final boolean topLevel;
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+        // Local holding the Environment of the innermost scope being compiled
+        private int environment = 2;
+
+        Generator(final String name, final boolean topLevel) {
+            this.assembler = new ClassAssembler(name, OBJECT);
+            this.topLevel = topLevel;
+            assembler.addInterface(CODE);
+            assembler.addStaticField("K", "[L" + OBJECT + ";");
+
+            final var constructor = assembler.method("<init>", "()V");
+            constructor.aload(0);
+            constructor.invokespecial(OBJECT, "<init>", "()V");
+            constructor.vreturn();
+            constructor.end();
+
+            this.code = assembler.method("run", RUN_DESCRIPTOR);
+        }
+
+        JvmCode define() throws ReflectiveOperationException {
+            if (code.isReachable()) {
+                code.aconstNull();
+                code.areturn();
+            }
+            code.end();
+
+            final var hidden = lookup.defineHiddenClass(assembler.toByteArray(), true);
+            final var type = hidden.lookupClass();
+            hidden.findStaticVarHandle(type, "K", Object[].class).set(constants.toArray());
+            return (JvmCode) type.getDeclaredConstructor().newInstance();
+        }
+
+        void statements(final List<Stmt> statements) {
+            for (final var statement : statements) {
+                // Anything after a 'return' can't run, and the JVM won't take it either
+                if (!code.isReachable()) break;
+                statement.accept(this);
+            }
+        }
+
+        private void expression(final Expr expr) {
+            expr.accept(this);
+            code.widen(OBJECT);
+        }
+
+        /**
+         * Leaves the truthiness of the expression on the stack as a JVM boolean,
+         * comparisons and negations don't need to box their result for it
+         */
+        private void condition(final Expr expr) {
+            if (expr instanceof Expr.Grouping) {
+                condition(((Expr.Grouping) expr).expression);
+                return;
+            }
+
+            if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.BANG) {
+                condition(((Expr.Unary) expr).right);
+                code.not();
+                return;
+            }
+
+            if (expr instanceof Expr.Logical) {
+                final var logical = (Expr.Logical) expr;
+                final var end = new ClassAssembler.Label();
+                condition(logical.left);
+                code.dup();
+                if (logical.operator.type == TokenType.OR) {
+                    code.ifne(end);
+                } else {
+                    code.ifeq(end);
+                }
+                code.pop();
+                condition(logical.right);
+                code.bind(end);
+                return;
+            }
+
+            if (expr instanceof Expr.Binary && comparison((Expr.Binary) expr)) {
+                return;
+            }
+
+            expression(expr);
+            code.invokestatic(RUNTIME, "isTruthy", "(L" + OBJECT + ";)Z");
+        }
+
+        private boolean comparison(final Expr.Binary expr) {
+            final String operation;
+            switch (expr.operator.type) {
+                case GREATER: operation = "greater"; break;
+                case GREATER_EQUAL: operation = "greaterEqual"; break;
+                case LESS: operation = "less"; break;
+                case LESS_EQUAL: operation = "lessEqual"; break;
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    expression(expr.left);
+                    expression(expr.right);
+                    code.invokestatic(RUNTIME, "isEqual", "(L" + OBJECT + ";L" + OBJECT + ";)Z");
+                    if (expr.operator.type == TokenType.BANG_EQUAL) code.not();
+                    return true;
+                default:
+                    return false;
+            }
+
+            expression(expr.left);
+            expression(expr.right);
+            constant(expr.operator, TOKEN);
+            code.invokestatic(RUNTIME, operation, COMPARISON_DESCRIPTOR);
+            return true;
+        }
+
+        private void box() {
+            code.invokestatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        }
+
+        /**
+         * Pushes an object that can't be expressed as a JVM constant, they
+         * are kept on the K array of the generated class
+         */
+        private void constant(final Object value, final String type) {
+            code.getstatic(assembler.name(), "K", "[L" + OBJECT + ";");
+            code.iconst(constantIndex(value));
+            code.aaload();
+            if (!type.equals(OBJECT)) code.checkcast(type);
+        }
+
+        private int constantIndex(final Object value) {
+            var index = constantIndex.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                constantIndex.put(value, index);
+            }
+            return index;
+        }
+
+        /**
+         * Emits an invokedynamic linked by the given LoxLinker bootstrap, its
+         * static arguments are the indexes of the tokens on the K array
+         */
+        private void dynamic(final String name, final String descriptor, final String bootstrap, final Token... tokens) {
+            final var indexes = new int[tokens.length];
+            for (var i = 0; i < tokens.length; ++i)
+                indexes[i] = constantIndex(tokens[i]);
+
+            final var bootstrapMethod = assembler.bootstrapMethod(
+                    LINKER,
+                    bootstrap,
+                    "(" + BOOTSTRAP_PARAMETERS + "I".repeat(tokens.length) + ")Ljava/lang/invoke/CallSite;",
+                    indexes
+            );
+            code.invokedynamic(bootstrapMethod, name, descriptor);
+        }
+
+        private void local(final Token name, final int depth, final int slot) {
+            if (depth == -1) {
+                code.aload(INTERPRETER_LOCAL);
+                constant(name, TOKEN);
+                code.invokestatic(RUNTIME, "getGlobal", "(L" + INTERPRETER + ";L" + TOKEN + ";)L" + OBJECT + ";");
+                return;
+            }
+
+            code.aload(environment);
+            code.iconst(depth);
+            code.iconst(slot);
+            code.invokevirtual(ENVIRONMENT, "getAt", "(II)L" + OBJECT + ";");
+        }
+
+        @Override
+        public Void visitAssignExpr(final Expr.Assign expr) {
+            expression(expr.value);
+            if (expr.depth != -1) {
+                code.aload(environment);
+                code.iconst(expr.depth);
+                code.iconst(expr.slot);
+                code.invokestatic(RUNTIME, "assignLocal", "(L" + OBJECT + ";L" + ENVIRONMENT + ";II)L" + OBJECT + ";");
+            } else {
+                code.aload(INTERPRETER_LOCAL);
+                constant(expr.name, TOKEN);
+                code.invokestatic(
+                        RUNTIME,
+                        "assignGlobal",
+                        "(L" + OBJECT + ";L" + INTERPRETER + ";L" + TOKEN + ";)L" + OBJECT + ";"
+                );
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(final Expr.Binary expr) {
+            if (comparison(expr)) {
+                box();
+                return null;
+            }
+
+            final String operation;
+            switch (expr.operator.type) {
+                case MINUS: operation = "subtract"; break;
+                case SLASH: operation = "divide"; break;
+                case STAR: operation = "multiply"; break;
+                case PLUS: operation = "add"; break;
+                default: throw Unsupported.INSTANCE;
+            }
+
+            expression(expr.left);
+            expression(expr.right);
+            constant(expr.operator, TOKEN);
+            code.invokestatic(RUNTIME, operation, BINARY_DESCRIPTOR);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(final Expr.Call expr) {
+            final var count = expr.arguments.size();
+            if (expr.callee instanceof Expr.Get && count <= MAX_DYNAMIC_ARGUMENTS) {
+                invoke(expr, (Expr.Get) expr.callee);
+                return null;
+            }
+
+            expression(expr.callee);
+
+            if (count > MAX_DYNAMIC_ARGUMENTS) {
+                code.iconst(count);
+                code.anewarray(OBJECT);
+                for (var i = 0; i < count; ++i) {
+                    code.dup();
+                    code.iconst(i);
+                    expression(expr.arguments.get(i));
+                    code.aastore();
+                }
+                code.aload(INTERPRETER_LOCAL);
+                constant(expr.paren, TOKEN);
+                code.invokestatic(
+                        RUNTIME,
+                        "callN",
+                        "(L" + OBJECT + ";[L" + OBJECT + ";L" + INTERPRETER + ";L" + TOKEN + ";)L" + OBJECT + ";"
+                );
+                return null;
+            }
+
+            final var descriptor = new StringBuilder("(L" + OBJECT + ";");
+            for (final var argument : expr.arguments) {
+                expression(argument);
+                descriptor.append("L" + OBJECT + ";");
+            }
+            descriptor.append("L" + INTERPRETER + ";)L" + OBJECT + ";");
+
+            code.aload(INTERPRETER_LOCAL);
+            dynamic("call", descriptor.toString(), "bootstrapCall", expr.paren);
+            return null;
+        }
+
+        /**
+         * Calls of the form 'object.method(...)', the field under that name is
+         * read before the arguments run, and when there's none the site calls
+         * the method with 'this' straight on its call frame, without binding it
+         */
+        private void invoke(final Expr.Call expr, final Expr.Get get) {
+            expression(get.object);
+            code.dup();
+            constant(get.name, TOKEN);
+            code.invokestatic(RUNTIME, "field", "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+
+            final var descriptor = new StringBuilder("(L" + OBJECT + ";L" + OBJECT + ";");
+            for (final var argument : expr.arguments) {
+                expression(argument);
+                descriptor.append("L" + OBJECT + ";");
+            }
+            descriptor.append("L" + INTERPRETER + ";)L" + OBJECT + ";");
+
+            code.aload(INTERPRETER_LOCAL);
+            dynamic("invoke", descriptor.toString(), "bootstrapInvoke", get.name, expr.paren);
+        }
+
+        @Override
+        public Void visitGetExpr(final Expr.Get expr) {
+            expression(expr.object);
+            dynamic("get", "(L" + OBJECT + ";)L" + OBJECT + ";", "bootstrapGet", expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(final Expr.Set expr) {
+            expression(expr.object);
+            constant(expr.name, TOKEN);
+            code.invokestatic(RUNTIME, "checkInstance", "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+            expression(expr.value);
+            constant(expr.name, TOKEN);
+            code.invokestatic(RUNTIME, "set", BINARY_DESCRIPTOR);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(final Expr.Super expr) {
+            code.aload(environment);
+            code.iconst(expr.depth);
+            constant(expr.method, TOKEN);
+            code.invokestatic(
+                    RUNTIME,
+                    "superMethod",
+                    "(L" + ENVIRONMENT + ";IL" + TOKEN + ";)L" + OBJECT + ";"
+            );
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(final Expr.This expr) {
+            local(expr.keyword, expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(final Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(final Expr.Literal expr) {
+            if (expr.value == null) {
+                code.aconstNull();
+            } else if (expr.value instanceof Boolean) {
+                code.getstatic(
+                        "java/lang/Boolean",
+                        (Boolean) expr.value ? "TRUE" : "FALSE",
+                        "Ljava/lang/Boolean;"
+                );
+            } else if (expr.value instanceof String) {
+                code.ldcString((String) expr.value);
+            } else {
+                constant(expr.value, OBJECT);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(final Expr.Logical expr) {
+            final var end = new ClassAssembler.Label();
+            expression(expr.left);
+            code.dup();
+            code.invokestatic(RUNTIME, "isTruthy", "(L" + OBJECT + ";)Z");
+            if (expr.operator.type == TokenType.OR) {
+                code.ifne(end);
+            } else {
+                code.ifeq(end);
+            }
+            code.pop();
+            expression(expr.right);
+            code.bind(end);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(final Expr.Unary expr) {
+            if (expr.operator.type == TokenType.BANG) {
+                condition(expr);
+                box();
+                return null;
+            }
+
+            expression(expr.right);
+            constant(expr.operator, TOKEN);
+            code.invokestatic(RUNTIME, "negate", "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(final Expr.Variable expr) {
+            local(expr.name, expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(final Stmt.Block stmt) {
+            if (!stmt.scoped) {
+                statements(stmt.statements);
+                return null;
+            }
+
+            final var enclosing = environment;
+            code.aload(enclosing);
+            code.invokestatic(RUNTIME, "newEnvironment", "(L" + ENVIRONMENT + ";)L" + ENVIRONMENT + ";");
+            environment = code.newLocal(ENVIRONMENT);
+            code.astore(environment);
+
+            statements(stmt.statements);
+            environment = enclosing;
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(final Stmt.Class stmt) {
+            final var methods = new JvmCode[stmt.methods.size()];
+            for (var i = 0; i < methods.length; ++i)
+                methods[i] = compile(stmt.methods.get(i));
+
+            code.aload(environment);
+            constant(stmt, PACKAGE + "Stmt$Class");
+            if (stmt.superclass != null) {
+                expression(stmt.superclass);
+            } else {
+                code.aconstNull();
+            }
+            constant(methods, "[L" + CODE + ";");
+            code.invokestatic(
+                    RUNTIME,
+                    "defineClass",
+                    "(L" + ENVIRONMENT + ";L" + PACKAGE + "Stmt$Class;L" + OBJECT + ";[L" + CODE + ";)V"
+            );
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(final Stmt.Expression stmt) {
+            expression(stmt.expression);
+            code.pop();
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(final Stmt.Function stmt) {
+            final var function = compile(stmt);
+
+            code.aload(environment);
+            constant(stmt, PACKAGE + "Stmt$Function");
+            if (function != null) {
+                constant(function, CODE);
+            } else {
+                code.aconstNull();
+            }
+            code.invokestatic(
+                    RUNTIME,
+                    "defineFunction",
+                    "(L" + ENVIRONMENT + ";L" + PACKAGE + "Stmt$Function;L" + CODE + ";)V"
+            );
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(final Stmt.If stmt) {
+            final var elseBranch = new ClassAssembler.Label();
+            final var end = new ClassAssembler.Label();
+
+            condition(stmt.condition);
+            code.ifeq(elseBranch);
+            stmt.thenBranch.accept(this);
+            if (code.isReachable()) code.goTo(end);
+            code.bind(elseBranch);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            code.bind(end);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(final Stmt.Print stmt) {
+            expression(stmt.expression);
+            code.invokestatic(RUNTIME, "print", "(L" + OBJECT + ";)V");
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(final Stmt.Return stmt) {
+            // The Resolver already complains about it, but the Interpreter
+            // is the one that knows how it behaves
+            if (topLevel) throw Unsupported.INSTANCE;
+
+            if (stmt.value != null) {
+                expression(stmt.value);
+            } else {
+                code.aconstNull();
+            }
+            code.areturn();
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(final Stmt.While stmt) {
+            final var start = new ClassAssembler.Label();
+            final var end = new ClassAssembler.Label();
+
+            code.bind(start);
+            condition(stmt.condition);
+            code.ifeq(end);
+            stmt.body.accept(this);
+            if (code.isReachable()) code.goTo(start);
+            code.bind(end);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(final Stmt.Var stmt) {
+            code.aload(environment);
+            code.iconst(stmt.slot);
+            code.ldcString(stmt.name.lexeme);
+            if (stmt.initializer != null) {
+                expression(stmt.initializer);
+            } else {
+                code.aconstNull();
+            }
+            code.invokevirtual(ENVIRONMENT, "defineAt", "(ILjava/lang/String;L" + OBJECT + ";)V");
+            return null;
+        }
+    }
+}
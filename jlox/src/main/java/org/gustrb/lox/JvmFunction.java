@@ -0,0 +1,28 @@
+package org.gustrb.lox;
+
+/**
+ * A LoxFunction whose body was compiled into JVM bytecode by the JvmCompiler
+ */
+class JvmFunction extends LoxFunction {
+    private final JvmCode code;
+
+    JvmFunction(
+            final Stmt.Function declaration,
+            final Environment closure,
+            final boolean isInitializer,
+            final JvmCode code
+    ) {
+        super(declaration, closure, isInitializer);
+        this.code = code;
+    }
+
+    @Override
+    LoxFunction withClosure(final Environment closure) {
+        return new JvmFunction(declaration, closure, isInitializer, code);
+    }
+
+    @Override
+    Object execute(final Interpreter interpreter, final Environment environment) {
+        return code.run(interpreter, environment);
+    }
+}
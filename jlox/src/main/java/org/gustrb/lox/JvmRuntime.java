@@ -0,0 +1,218 @@
+package org.gustrb.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Operations called from the bytecode generated by the JvmCompiler. They are
+ * all small static methods so HotSpot can inline them into the Lox code
+ */
+final class JvmRuntime {
+    private JvmRuntime() {}
+
+    static boolean isTruthy(final Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    static boolean isEqual(final Object left, final Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object negate(final Object value, final Token operator) {
+        Interpreter.checkNumberOperand(operator, value);
+        return Numbers.box(-(double) value);
+    }
+
+    static Object add(final Object left, final Object right, final Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return Numbers.box((double) left + (double) right);
+        }
+
+        if (Concatenation.isString(left) && Concatenation.isString(right)) {
+            return Concatenation.concat(left, right);
+        }
+
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings");
+    }
+
+    static Object subtract(final Object left, final Object right, final Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.box((double) left - (double) right);
+    }
+
+    static Object multiply(final Object left, final Object right, final Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.box((double) left * (double) right);
+    }
+
+    static Object divide(final Object left, final Object right, final Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return Numbers.box((double) left / (double) right);
+    }
+
+    static boolean greater(final Object left, final Object right, final Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+    }
+
+    static boolean greaterEqual(final Object left, final Object right, final Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+    }
+
+    static boolean less(final Object left, final Object right, final Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+    }
+
+    static boolean lessEqual(final Object left, final Object right, final Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+    }
+
+    static Object getGlobal(final Interpreter interpreter, final Token name) {
+        return interpreter.globals.get(name);
+    }
+
+    static Object assignGlobal(final Object value, final Interpreter interpreter, final Token name) {
+        interpreter.globals.assign(name, value);
+        return value;
+    }
+
+    static Object assignLocal(final Object value, final Environment environment, final int depth, final int slot) {
+        environment.assignAt(depth, slot, value);
+        return value;
+    }
+
+    static Environment newEnvironment(final Environment enclosing) {
+        return new Environment(enclosing);
+    }
+
+    static void print(final Object value) {
+        System.out.println(Interpreter.stringfy(value));
+    }
+
+    // Calls with too many arguments for an invokedynamic site, see LoxLinker for the others
+    static Object callN(
+            final Object callee,
+            final Object[] arguments,
+            final Interpreter interpreter,
+            final Token paren
+    ) {
+        return call(callee, Arrays.asList(arguments), interpreter, paren);
+    }
+
+    private static Object call(
+            final Object callee,
+            final List<Object> arguments,
+            final Interpreter interpreter,
+            final Token paren
+    ) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        final var function = (LoxCallable) callee;
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(
+                    paren,
+                    "Expected " + function.arity() + " arguments but got " + arguments.size() + "."
+            );
+        }
+
+        return function.call(interpreter, arguments);
+    }
+
+    static Object get(final Object object, final Token name) {
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).get(name);
+        }
+
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    /**
+     * The field of the instance under that name, or LoxInstance.NO_FIELD, for the method invoke sites
+     */
+    static Object field(final Object object, final Token name) {
+        if (object instanceof LoxInstance) {
+            return ((LoxInstance) object).field(name.lexeme);
+        }
+
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static Object checkInstance(final Object object, final Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields");
+        }
+        return object;
+    }
+
+    static Object set(final Object object, final Object value, final Token name) {
+        ((LoxInstance) object).set(name, value);
+        return value;
+    }
+
+    static Object superMethod(final Environment environment, final int depth, final Token method) {
+        final var superclass = (LoxClass) environment.getAt(depth, 0);
+        final var object = (LoxInstance) environment.getAt(depth - 1, 0);
+        final var function = superclass.findMethod(method.lexeme);
+
+        if (function == null) {
+            throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+        }
+
+        return function.bind(object);
+    }
+
+    static void defineFunction(final Environment environment, final Stmt.Function declaration, final JvmCode code) {
+        environment.defineAt(declaration.slot, declaration.name.lexeme, function(declaration, environment, false, code));
+    }
+
+    static void defineClass(
+            final Environment environment,
+            final Stmt.Class stmt,
+            final Object superclass,
+            final JvmCode[] methods
+    ) {
+        var methodEnvironment = environment;
+        if (stmt.superclass != null) {
+            if (!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(stmt.superclass.name, "Superclass must be a class");
+            }
+
+            methodEnvironment = new Environment(environment);
+            methodEnvironment.define("super", superclass);
+        }
+
+        final Map<String, LoxFunction> functions = new HashMap<>();
+        for (var i = 0; i < methods.length; ++i) {
+            final var method = stmt.methods.get(i);
+            final var isInitializer = method.name.lexeme.equals("init");
+            functions.put(method.name.lexeme, function(method, methodEnvironment, isInitializer, methods[i]));
+        }
+
+        // Redefining a class (i.e. on the REPL) throws away every inline cache
+        if (environment.contains(stmt.name.lexeme)) {
+            LoxLinker.invalidateClasses();
+        }
+
+        environment.defineAt(stmt.slot, stmt.name.lexeme, new LoxClass(stmt.name.lexeme, (LoxClass) superclass, functions));
+    }
+
+    // Functions the JvmCompiler couldn't compile are left for the Interpreter
+    private static LoxFunction function(
+            final Stmt.Function declaration,
+            final Environment closure,
+            final boolean isInitializer,
+            final JvmCode code
+    ) {
+        if (code == null) {
+            return new LoxFunction(declaration, closure, isInitializer);
+        }
+        return new JvmFunction(declaration, closure, isInitializer, code);
+    }
+}
@@ -0,0 +1,52 @@
+package org.gustrb.lox;
+
+/**
+ * Interning table for the lexemes of a Scanner. Lookups hash the characters
+ * straight from the source, so a lexeme that was already seen (a variable
+ * used all over the script, a keyword...) never gets its own String copied
+ */
+final class Lexemes {
+    private String[] table = new String[64];
+    private int size = 0;
+
+    String intern(final CharSequence source, final int start, final int end) {
+        // Same hash as String.hashCode, so the entries can be checked with theirs
+        var hash = 0;
+        for (var i = start; i < end; ++i)
+            hash = 31 * hash + source.charAt(i);
+
+        final var mask = table.length - 1;
+        var index = hash & mask;
+        for (var entry = table[index]; entry != null; entry = table[index]) {
+            if (entry.hashCode() == hash && matches(entry, source, start, end)) return entry;
+            index = (index + 1) & mask;
+        }
+
+        final var lexeme = source.subSequence(start, end).toString();
+        table[index] = lexeme;
+        if (++size * 2 > table.length) grow();
+        return lexeme;
+    }
+
+    private static boolean matches(final String entry, final CharSequence source, final int start, final int end) {
+        if (entry.length() != end - start) return false;
+        for (var i = 0; i < entry.length(); ++i) {
+            if (entry.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        final var previous = table;
+        table = new String[previous.length * 2];
+        final var mask = table.length - 1;
+        for (final var entry : previous) {
+            if (entry == null) continue;
+
+            var index = entry.hashCode() & mask;
+            while (table[index] != null)
+                index = (index + 1) & mask;
+            table[index] = entry;
+        }
+    }
+}
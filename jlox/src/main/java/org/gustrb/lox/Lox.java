@@ -3,37 +3,182 @@ package org.gustrb.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * A session running Lox code: it has its own Interpreter (so its own
+ * globals) and keeps its own diagnostics, so many of them can live on the
+ * same JVM, see Batch
+ */
 public class Lox {
-    private static boolean hadError = false;
-    private static boolean hadRuntimeError = false;
-    private static final Interpreter interpreter = new Interpreter();
+    public enum Engine {
+        // Walks the AST with the Interpreter's visitors
+        TREE,
+        // Compiles the AST into specialized nodes before running it, see ClosureCompiler
+        CLOSURE,
+        // Compiles the AST into JVM bytecode, see JvmCompiler
+        JVM,
+    }
+
+    private static final String USAGE =
+            "Usage: jlox [--engine=tree|closure|jvm] [--packed-tokens] [--ast-cache=<dir>] [--optimize]"
+            + " [--profile[=<file>]] [--profile-rate=<per second>] [--metrics] [script...]";
+
+    private final Engine engine;
+    // Scan the whole source into PackedTokens before parsing instead of streaming the tokens
+    private final boolean packedTokens;
+    // Where scripts are cached once resolved, null to always compile them from source
+    private final AstCache astCache;
+    // Fold constants and drop dead branches before running, see Optimizer
+    private final boolean optimize;
+    private final PrintStream diagnostics;
+    private final Interpreter interpreter = new Interpreter();
+    private final IncrementalCompiler incremental = new IncrementalCompiler(this);
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
+
+    public Lox(
+            final Engine engine,
+            final boolean packedTokens,
+            final Path astCache,
+            final boolean optimize,
+            final PrintStream diagnostics
+    ) {
+        this.engine = engine;
+        this.packedTokens = packedTokens;
+        this.astCache = astCache != null ? new AstCache(astCache) : null;
+        this.optimize = optimize;
+        this.diagnostics = diagnostics;
+    }
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        var engine = Engine.TREE;
+        var packedTokens = false;
+        Path astCache = null;
+        var optimize = false;
+        Path profile = null;
+        var profileRate = 1000;
+        var metrics = false;
+        final List<String> scripts = new ArrayList<>();
+        for (final var arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = parseEngine(arg.substring("--engine=".length()));
+            } else if (arg.equals("--packed-tokens")) {
+                packedTokens = true;
+            } else if (arg.startsWith("--ast-cache=")) {
+                astCache = Paths.get(arg.substring("--ast-cache=".length()));
+            } else if (arg.equals("--optimize")) {
+                optimize = true;
+            } else if (arg.equals("--profile")) {
+                profile = Paths.get("jlox.folded");
+            } else if (arg.startsWith("--profile=")) {
+                profile = Paths.get(arg.substring("--profile=".length()));
+            } else if (arg.startsWith("--profile-rate=")) {
+                profileRate = parseRate(arg.substring("--profile-rate=".length()));
+            } else if (arg.equals("--metrics")) {
+                metrics = true;
+            } else if (!arg.startsWith("--")) {
+                scripts.add(arg);
+            } else {
+                usage();
+            }
+        }
+
+        final var profiler = profile != null ? new Profiler(profile, profileRate) : null;
+        if (metrics) Metrics.enable();
+        final int status;
+        if (scripts.size() > 1) {
+            status = Batch.run(scripts, engine, packedTokens, astCache, optimize, profiler);
         } else {
-            runPrompt();
+            final var lox = new Lox(engine, packedTokens, astCache, optimize, System.err);
+            lox.profileWith(profiler);
+            if (scripts.size() == 1) {
+                status = lox.runFile(scripts.get(0));
+            } else {
+                lox.runPrompt();
+                status = 0;
+            }
         }
+
+        if (profiler != null) profiler.report(System.err);
+        if (Metrics.current != null) Metrics.current.report(System.err);
+        System.exit(status);
     }
 
-    private static void runFile(String path) throws IOException {
-        final var bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    private static Engine parseEngine(final String name) {
+        switch (name) {
+            case "tree": return Engine.TREE;
+            case "closure": return Engine.CLOSURE;
+            case "jvm": return Engine.JVM;
+        }
 
-        if (hadError)
-            System.exit(65);
-        if (hadRuntimeError)
-            System.exit(70);
+        usage();
+        return null;
     }
 
-    private static void runPrompt() throws IOException {
+    private static int parseRate(final String rate) {
+        try {
+            final var parsed = Integer.parseInt(rate);
+            if (parsed > 0) return parsed;
+        } catch (NumberFormatException e) {
+            // Same as any other bad argument
+        }
+
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println(USAGE);
+        System.exit(64);
+    }
+
+    /**
+     * Same as compile for the script on that file, going through the AST cache when there is one
+     */
+    public List<Stmt> compileFile(final String path) throws IOException {
+        // A regular file is mapped instead of read into a byte[], and the Scanner
+        // works straight on the decoded buffer without building a String. Pipes
+        // (/dev/stdin, <(...)) have no size to map and are read as before
+        final var file = Paths.get(path);
+        final ByteBuffer bytes;
+        if (Files.isRegularFile(file)) {
+            try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        } else {
+            bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        }
+
+        if (astCache == null) return compile(Charset.defaultCharset().decode(bytes));
+
+        // The cache keeps the trees as the Resolver left them, whether they get optimized is up to each run
+        final var key = AstCache.key(bytes);
+        var statements = astCache.load(key);
+        if (statements == null) {
+            statements = analyze(Charset.defaultCharset().decode(bytes));
+            if (statements == null) return null;
+            astCache.store(key, statements);
+        }
+        return optimize(statements);
+    }
+
+    private int runFile(String path) throws IOException {
+        final var statements = compileFile(path);
+        if (statements != null) execute(statements);
+        return exitCode();
+    }
+
+    private void runPrompt() throws IOException {
         final var input = new InputStreamReader(System.in);
         final var reader = new BufferedReader(input);
         while (true) {
@@ -43,33 +188,124 @@ public class Lox {
             if (line == null)
                 break;
 
-            run(line);
+            // Every line is a new version of the same buffer, so the statements
+            // it starts or ends with the same way as the previous line (i.e.
+            // re-running the same call) reuse the trees they got there
+            final var statements = compileEdited(line);
+            if (statements != null) execute(statements);
 
             hadError = false;
         }
     }
 
-    private static void run(String source) {
-        final var scanner = new Scanner(source);
-        final var tokens = scanner.scanTokens();
-        final var parser = new Parser(tokens);
+    public void run(final CharSequence source) {
+        final var statements = compile(source);
+        if (statements != null) execute(statements);
+    }
+
+    /**
+     * Scans, parses and resolves the source, returning null if it had any error.
+     * It doesn't touch the Interpreter, so it is safe to run it on another thread
+     */
+    public List<Stmt> compile(final CharSequence source) {
+        final var statements = analyze(source);
+        return statements != null ? optimize(statements) : null;
+    }
+
+    /**
+     * Same as compile, without the Optimizer
+     */
+    private List<Stmt> analyze(final CharSequence source) {
+        final var scanner = new Scanner(source, this);
+        final Parser parser;
+        if (packedTokens) {
+            final var scanning = Metrics.start("scan");
+            parser = new Parser(scanner.scanPacked(), this);
+            Metrics.stop(scanning);
+        } else {
+            parser = new Parser(scanner, this);
+        }
+
+        final var parsing = Metrics.start("parse");
         final var statements = parser.parse();
+        Metrics.stop(parsing);
 
-        if (hadError) return;
+        if (hadError) return null;
 
-        final var resolver = new Resolver(interpreter);
+        final var resolving = Metrics.start("resolve");
+        final var resolver = new Resolver(this);
         resolver.resolve(statements);
+        Metrics.stop(resolving);
+
+        if (hadError) return null;
+        return statements;
+    }
+
+    /**
+     * Same as compile, for a buffer compiled again after every edit: the top
+     * level statements that didn't change keep the trees they got the last
+     * time, see IncrementalCompiler
+     */
+    public List<Stmt> compileEdited(final CharSequence buffer) {
+        // Errors are about this version of the buffer only
+        hadError = false;
+        final var statements = incremental.compile(buffer);
+        return statements != null ? optimize(statements) : null;
+    }
+
+    private List<Stmt> optimize(final List<Stmt> statements) {
+        if (!optimize) return statements;
+
+        final var optimizing = Metrics.start("optimize");
+        final var optimized = new Optimizer().optimize(statements);
+        Metrics.stop(optimizing);
+        return optimized;
+    }
 
-        if (hadError) return;
+    /**
+     * Has the calls this session makes sampled by that Profiler, null to stop
+     */
+    void profileWith(final Profiler profiler) {
+        interpreter.profiler = profiler;
+    }
 
-        interpreter.interpret(statements);
+    public void execute(final List<Stmt> statements) {
+        // The code outside of any function is a frame of its own
+        final var profiler = interpreter.profiler;
+        if (profiler != null) profiler.enter("<script>", 0);
+        final var executing = Metrics.start("execute");
+        try {
+            switch (engine) {
+                case TREE: interpreter.interpret(statements); break;
+                case CLOSURE: new ClosureCompiler(interpreter).interpret(statements); break;
+                case JVM: new JvmCompiler(interpreter).interpret(statements); break;
+            }
+        } catch (RuntimeError e) {
+            runtimeError(e);
+        } finally {
+            if (profiler != null) profiler.exit();
+            Metrics.stop(executing);
+        }
     }
 
-    public static void error(int line, String message) {
+    /**
+     * The status the process should exit with after running a script on this session
+     */
+    public int exitCode() {
+        if (hadError) return 65;
+        if (hadRuntimeError) return 70;
+        return 0;
+    }
+
+    boolean hadError() {
+        return hadError;
+    }
+
+    public void error(int line, String message) {
         report(line, "", message);
     }
 
-    public static void error(final Token token, final String message) {
+    public void error(final Token token, final String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
@@ -77,14 +313,18 @@ public class Lox {
         }
     }
 
-    public static void runtimeError(final RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    public void runtimeError(final RuntimeError error) {
+        diagnostics.println(error.getMessage() + "\n[line " + error.token.line + "]");
         hadRuntimeError = true;
+
+        final var metrics = Metrics.current;
+        if (metrics != null) metrics.runtimeError();
     }
 
-    private static void report(int line, String where, String message) {
+    private void report(int line, String where, String message) {
         // TODO: I should probably use StringBuilder here but I'm following the book
         //       (a.k.a feeling lazy)
-        System.err.println("[line "+ line + "] Error" + where + ": " + message);
+        diagnostics.println("[line "+ line + "] Error" + where + ": " + message);
+        hadError = true;
     }
 }
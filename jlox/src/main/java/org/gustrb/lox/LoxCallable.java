@@ -1,8 +1,33 @@
 package org.gustrb.lox;
 
+import java.util.Arrays;
 import java.util.List;
 
 public interface LoxCallable {
+    // Calls with up to this many arguments go through call0 to call3
+    int MAX_FIXED_ARGUMENTS = 3;
+
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    /**
+     * Same as call, with the arguments one by one so the call doesn't need a
+     * List for them. Callables that can take them as they are override
+     * these, the rest get them in a list as before
+     */
+    default Object call0(final Interpreter interpreter) {
+        return call(interpreter, List.of());
+    }
+
+    default Object call1(final Interpreter interpreter, final Object a) {
+        return call(interpreter, Arrays.asList(a));
+    }
+
+    default Object call2(final Interpreter interpreter, final Object a, final Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(final Interpreter interpreter, final Object a, final Object b, final Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
 }
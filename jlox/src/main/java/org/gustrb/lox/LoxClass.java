@@ -1,50 +1,86 @@
 package org.gustrb.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     final String name;
+    // Every method the instances respond to, the inherited ones included,
+    // so a lookup never has to walk up the superclass chain
     private final Map<String, LoxFunction> methods;
-    private final LoxClass superclass;
+    private final LoxFunction initializer;
+    private final int arity;
+    // The shape every instance of this class starts on, before any field is set
+    final Shape shape = new Shape();
 
     public LoxClass(final String name, final LoxClass superclass, final Map<String, LoxFunction> methods) {
         this.name = name;
-        this.methods = methods;
-        this.superclass = superclass;
+        this.methods = new HashMap<>();
+        if (superclass != null) {
+            this.methods.putAll(superclass.methods);
+        }
+        this.methods.putAll(methods);
+
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     public LoxFunction findMethod(final String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        return methods.get(name);
+    }
 
-        if (superclass != null) {
-            return superclass.findMethod(name);
+    @Override
+    public Object call(final Interpreter interpreter, final List<Object> arguments) {
+        final var instance = instantiate();
+
+        if (initializer != null) {
+            initializer.callMethod(interpreter, instance, arguments);
         }
 
-        return null;
+        return instance;
     }
 
     @Override
-    public Object call(final Interpreter interpreter, final List<Object> arguments) {
-        final var instance = new LoxInstance(this);
+    public Object call0(final Interpreter interpreter) {
+        return call(interpreter, 0, null, null, null);
+    }
+
+    @Override
+    public Object call1(final Interpreter interpreter, final Object a) {
+        return call(interpreter, 1, a, null, null);
+    }
 
-        final var constructor = findMethod("init");
-        if (constructor != null) {
-            constructor.bind(instance).call(interpreter, arguments);
+    @Override
+    public Object call2(final Interpreter interpreter, final Object a, final Object b) {
+        return call(interpreter, 2, a, b, null);
+    }
+
+    @Override
+    public Object call3(final Interpreter interpreter, final Object a, final Object b, final Object c) {
+        return call(interpreter, 3, a, b, c);
+    }
+
+    private Object call(final Interpreter interpreter, final int count, final Object a, final Object b, final Object c) {
+        final var instance = instantiate();
+
+        if (initializer != null) {
+            initializer.callMethod(interpreter, instance, count, a, b, c);
         }
 
         return instance;
     }
 
+    private LoxInstance instantiate() {
+        final var metrics = Metrics.current;
+        if (metrics != null) metrics.instantiated(this);
+
+        return new LoxInstance(this);
+    }
+
     @Override
     public int arity() {
-        final var constructor = findMethod("init");
-        if (constructor == null) {
-            return 0;
-        }
-        return constructor.arity();
+        return arity;
     }
 
     @Override
@@ -3,12 +3,17 @@ package org.gustrb.lox;
 import java.util.List;
 
 public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private final boolean isInitializer;
+    final Stmt.Function declaration;
+    final Environment closure;
+    final boolean isInitializer;
+    // The frame of the last call, kept for the next one when nothing can capture it
+    private Environment spare;
 
     public LoxFunction(final Stmt.Function declaration, final Environment closure, final boolean isInitializer) {
-        this.closure = closure;
+        // A function that doesn't use any local from outside of it (see
+        // Resolver.capture) doesn't keep them alive. Initializers need their
+        // closure to hand back 'this'
+        this.closure = declaration.captures || isInitializer ? closure : null;
         this.declaration = declaration;
         this.isInitializer = isInitializer;
     }
@@ -16,7 +21,11 @@ public class LoxFunction implements LoxCallable {
     public LoxFunction bind(final LoxInstance instance) {
         final var env = new Environment(closure);
         env.define("this", instance);
-        return new LoxFunction(declaration, env, isInitializer);
+        return withClosure(env);
+    }
+
+    LoxFunction withClosure(final Environment closure) {
+        return new LoxFunction(declaration, closure, isInitializer);
     }
 
     @Override
@@ -26,21 +35,150 @@ public class LoxFunction implements LoxCallable {
 
     @Override
     public Object call(final Interpreter interpreter, final List<Object> arguments) {
+        return call(interpreter, closure, arguments);
+    }
+
+    @Override
+    public Object call0(final Interpreter interpreter) {
+        return call(interpreter, closure, 0, null, null, null);
+    }
+
+    @Override
+    public Object call1(final Interpreter interpreter, final Object a) {
+        return call(interpreter, closure, 1, a, null, null);
+    }
+
+    @Override
+    public Object call2(final Interpreter interpreter, final Object a, final Object b) {
+        return call(interpreter, closure, 2, a, b, null);
+    }
+
+    @Override
+    public Object call3(final Interpreter interpreter, final Object a, final Object b, final Object c) {
+        return call(interpreter, closure, 3, a, b, c);
+    }
+
+    /**
+     * Calls this method on that instance without binding it first, only the
+     * scope holding 'this' is created instead of a whole new LoxFunction
+     */
+    Object callMethod(final Interpreter interpreter, final LoxInstance instance, final List<Object> arguments) {
+        return call(interpreter, methodClosure(instance), arguments);
+    }
+
+    /**
+     * Same as callMethod, with the first count of a, b and c as the arguments, see LoxCallable.call0
+     */
+    Object callMethod(
+            final Interpreter interpreter,
+            final LoxInstance instance,
+            final int count,
+            final Object a,
+            final Object b,
+            final Object c
+    ) {
+        return call(interpreter, methodClosure(instance), count, a, b, c);
+    }
+
+    /**
+     * The closure a call of this method on that instance runs on, the scope holding 'this'
+     */
+    Environment methodClosure(final LoxInstance instance) {
+        if (closure == null) return null;
+
         final var env = new Environment(closure);
+        env.define("this", instance);
+        return env;
+    }
+
+    private Object call(final Interpreter interpreter, final Environment closure, final List<Object> arguments) {
+        return run(interpreter, closure, frame(closure, arguments));
+    }
+
+    // The arguments are already checked against the arity, so the count is the number of parameters
+    private Object call(
+            final Interpreter interpreter,
+            final Environment closure,
+            final int count,
+            final Object a,
+            final Object b,
+            final Object c
+    ) {
+        final var env = frame(closure);
+        final var params = declaration.params;
+        if (count > 0) env.define(params.get(0).lexeme, a);
+        if (count > 1) env.define(params.get(1).lexeme, b);
+        if (count > 2) env.define(params.get(2).lexeme, c);
+        return run(interpreter, closure, env);
+    }
+
+    /**
+     * Runs the call on the frame already holding its arguments, then any call in tail position it returns
+     */
+    private Object run(final Interpreter interpreter, final Environment closure, final Environment env) {
+        final var profiler = interpreter.profiler;
+        if (profiler != null) profiler.enter(declaration.name.lexeme, declaration.name.line);
+        final var metrics = Metrics.current;
+        final var event = metrics != null ? metrics.call(declaration) : null;
+        try {
+            var value = complete(interpreter, closure, env);
+            // Calls in tail position come back to be made here, once the function
+            // returning them is done, instead of nesting in it. So tail recursion
+            // (mutual recursion included) runs on constant Java stack
+            while (value instanceof TailCall) {
+                final var tail = (TailCall) value;
+                if (profiler != null) {
+                    final var name = tail.function.declaration.name;
+                    profiler.replace(name.lexeme, name.line);
+                }
+                if (metrics != null) metrics.count(tail.function.declaration);
+                final var function = tail.function;
+                value = function.complete(interpreter, tail.closure, function.frame(tail.closure, tail.arguments));
+            }
+            return value;
+        } finally {
+            if (profiler != null) profiler.exit();
+            if (event != null) event.commit();
+        }
+    }
+
+    private Environment frame(final Environment closure, final List<Object> arguments) {
+        final var env = frame(closure);
         for (var i = 0; i < declaration.params.size(); ++i) {
             env.define(declaration.params.get(i).lexeme, arguments.get(i));
         }
+        return env;
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, env);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+    // A frame with no arguments on it yet
+    private Environment frame(final Environment closure) {
+        var env = spare;
+        if (env != null) {
+            // Recursive calls find no spare frame and get their own
+            spare = null;
+            env.reuse(closure);
+        } else {
+            env = new Environment(closure);
+        }
+        return env;
+    }
 
-            return returnValue.value;
+    private Object complete(final Interpreter interpreter, final Environment closure, final Environment env) {
+        final var value = execute(interpreter, env);
+        if (!declaration.captured) {
+            env.release();
+            spare = env;
         }
+        if (isInitializer) return closure.getAt(0, 0);
+        return value;
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+    /**
+     * Runs the body on the call environment, returning the value of its 'return' statement
+     */
+    Object execute(final Interpreter interpreter, final Environment environment) {
+        final var completion = interpreter.executeBlock(declaration.body, environment);
+        return completion == Completion.NORMAL ? null : completion;
     }
 
     @Override
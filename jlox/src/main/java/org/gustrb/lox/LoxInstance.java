@@ -1,19 +1,26 @@
 package org.gustrb.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+    static final Object NO_FIELD = new Object();
+
+    final LoxClass klass;
+    // The field names live on the shape, shared by the instances that got
+    // the same fields in the same order, only their values are kept here
+    private Shape shape;
+    private Object[] fields = NO_FIELDS;
 
     public LoxInstance(final LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.shape;
     }
 
     public Object get(final Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        final var slot = shape.slot(name.lexeme);
+        if (slot != -1) {
+            return fields[slot];
         }
 
         final var method = klass.findMethod(name.lexeme);
@@ -22,8 +29,50 @@ public class LoxInstance {
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
+    /**
+     * Same as get, with the method of the class under that name already looked up
+     */
+    Object get(final Token name, final LoxFunction method) {
+        final var slot = shape.slot(name.lexeme);
+        if (slot != -1) {
+            return fields[slot];
+        }
+
+        if (method != null) return method.bind(this);
+
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    /**
+     * The value of that field, or NO_FIELD if the instance doesn't have it
+     */
+    Object field(final String name) {
+        final var slot = shape.slot(name);
+        return slot == -1 ? NO_FIELD : fields[slot];
+    }
+
+    /**
+     * The method of its class under that name, for calls that invoke it right away instead of binding it
+     */
+    LoxFunction method(final Token name) {
+        final var method = klass.findMethod(name.lexeme);
+        if (method != null) return method;
+
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
     public void set(final Token name, final Object value) {
-        fields.put(name.lexeme, value);
+        final var slot = shape.slot(name.lexeme);
+        if (slot != -1) {
+            fields[slot] = value;
+            return;
+        }
+
+        shape = shape.with(name.lexeme);
+        if (shape.size() > fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+        }
+        fields[shape.size() - 1] = value;
     }
 
     @Override
@@ -0,0 +1,341 @@
+package org.gustrb.lox;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.util.Arrays;
+
+/**
+ * Bootstrap methods for the invokedynamic sites emitted by the JvmCompiler.
+ *
+ * Every call and property get site is an inline cache: the first time it
+ * sees a callee (or the class of an instance) it links a guarded fast path
+ * for it, chaining up to MAX_ENTRIES of them before giving up and going
+ * megamorphic. Calls are keyed on the function declaration (so bound methods
+ * and closures of the same function share an entry) or on the identity of
+ * classes and natives, property gets and method calls are keyed on the LoxClass.
+ *
+ * All entries also hang from a SwitchPoint that is invalidated whenever a
+ * global class is redefined (i.e. on the REPL), which sends every site back
+ * to relink from scratch.
+ */
+final class LoxLinker {
+    private static final int MAX_ENTRIES = 4;
+
+    private static final MethodHandle CALL_MISS;
+    private static final MethodHandle CALL;
+    private static final MethodHandle CALL_FUNCTION;
+    private static final MethodHandle CALL_CALLABLE;
+    private static final MethodHandle IS_FUNCTION;
+    private static final MethodHandle IS_SAME;
+    private static final MethodHandle GET_MISS;
+    private static final MethodHandle GET;
+    private static final MethodHandle GET_PROPERTY;
+    private static final MethodHandle IS_INSTANCE_OF;
+    private static final MethodHandle INVOKE_MISS;
+    private static final MethodHandle INVOKE;
+    private static final MethodHandle CALL_METHOD;
+    private static final MethodHandle IS_METHOD_OF;
+
+    static {
+        final var lookup = MethodHandles.lookup();
+        try {
+            CALL_MISS = lookup.findStatic(LoxLinker.class, "callMiss",
+                    MethodType.methodType(Object.class, InlineCache.class, Object[].class));
+            CALL = lookup.findStatic(LoxLinker.class, "call",
+                    MethodType.methodType(Object.class, Token.class, Object.class, Object[].class, Interpreter.class));
+            CALL_FUNCTION = lookup.findStatic(LoxLinker.class, "callFunction",
+                    MethodType.methodType(Object.class, Object.class, Object[].class, Interpreter.class));
+            CALL_CALLABLE = lookup.findStatic(LoxLinker.class, "callCallable",
+                    MethodType.methodType(Object.class, Object.class, Object[].class, Interpreter.class));
+            IS_FUNCTION = lookup.findStatic(LoxLinker.class, "isFunction",
+                    MethodType.methodType(boolean.class, Stmt.Function.class, Object.class));
+            IS_SAME = lookup.findStatic(LoxLinker.class, "isSame",
+                    MethodType.methodType(boolean.class, Object.class, Object.class));
+            GET_MISS = lookup.findStatic(LoxLinker.class, "getMiss",
+                    MethodType.methodType(Object.class, InlineCache.class, Object.class));
+            GET = lookup.findStatic(JvmRuntime.class, "get",
+                    MethodType.methodType(Object.class, Object.class, Token.class));
+            GET_PROPERTY = lookup.findStatic(LoxLinker.class, "getProperty",
+                    MethodType.methodType(Object.class, Token.class, LoxFunction.class, Object.class));
+            IS_INSTANCE_OF = lookup.findStatic(LoxLinker.class, "isInstanceOf",
+                    MethodType.methodType(boolean.class, LoxClass.class, Object.class));
+            INVOKE_MISS = lookup.findStatic(LoxLinker.class, "invokeMiss",
+                    MethodType.methodType(Object.class, InlineCache.class, Token.class, Object[].class));
+            INVOKE = lookup.findStatic(LoxLinker.class, "invoke", MethodType.methodType(
+                    Object.class, Token.class, Token.class, Object.class, Object.class, Object[].class, Interpreter.class
+            ));
+            CALL_METHOD = lookup.findStatic(LoxLinker.class, "callMethod", MethodType.methodType(
+                    Object.class, LoxFunction.class, Object.class, Object.class, Object[].class, Interpreter.class
+            ));
+            IS_METHOD_OF = lookup.findStatic(LoxLinker.class, "isMethodOf",
+                    MethodType.methodType(boolean.class, LoxClass.class, Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static SwitchPoint classes = new SwitchPoint();
+
+    private LoxLinker() {}
+
+    private static synchronized SwitchPoint classes() {
+        return classes;
+    }
+
+    static synchronized void invalidateClasses() {
+        final var previous = classes;
+        classes = new SwitchPoint();
+        SwitchPoint.invalidateAll(new SwitchPoint[]{previous});
+    }
+
+    private static final class InlineCache extends MutableCallSite {
+        private final Token token;
+        private MethodHandle miss;
+        private MethodHandle generic;
+        private MethodHandle chain;
+        private int entries;
+        private SwitchPoint switchPoint;
+
+        InlineCache(final MethodType type, final Token token) {
+            super(type);
+            this.token = token;
+        }
+
+        void initialize(final MethodHandle miss, final MethodHandle generic) {
+            this.miss = miss;
+            this.generic = generic;
+            reset();
+        }
+
+        private void reset() {
+            chain = miss;
+            entries = 0;
+            switchPoint = classes();
+            setTarget(miss);
+        }
+
+        synchronized void link(final MethodHandle guard, final MethodHandle target) {
+            if (switchPoint.hasBeenInvalidated()) reset();
+
+            if (entries == MAX_ENTRIES) {
+                setTarget(switchPoint.guardWithTest(generic, miss));
+                return;
+            }
+
+            chain = MethodHandles.guardWithTest(guard, target, chain);
+            entries++;
+            setTarget(switchPoint.guardWithTest(chain, miss));
+        }
+    }
+
+    private static Token token(final MethodHandles.Lookup lookup, final int index) throws ReflectiveOperationException {
+        final var constants = (Object[]) lookup.findStaticVarHandle(lookup.lookupClass(), "K", Object[].class).get();
+        return (Token) constants[index];
+    }
+
+    // Calls, the site type is (callee, arguments..., interpreter) -> result
+
+    static CallSite bootstrapCall(
+            final MethodHandles.Lookup lookup,
+            final String name,
+            final MethodType type,
+            final int paren
+    ) throws ReflectiveOperationException {
+        final var site = new InlineCache(type, token(lookup, paren));
+        final var arity = type.parameterCount() - 2;
+        site.initialize(
+                CALL_MISS.bindTo(site).asCollector(Object[].class, type.parameterCount()).asType(type),
+                MethodHandles.insertArguments(CALL, 0, site.token).asCollector(1, Object[].class, arity).asType(type)
+        );
+        return site;
+    }
+
+    private static Object callMiss(final InlineCache site, final Object[] values) {
+        final var callee = values[0];
+        final var interpreter = (Interpreter) values[values.length - 1];
+        final var arguments = Arrays.copyOfRange(values, 1, values.length - 1);
+        final var type = site.type();
+
+        if (callee instanceof LoxCallable && ((LoxCallable) callee).arity() == arguments.length) {
+            final MethodHandle guard;
+            final MethodHandle target;
+            if (callee instanceof LoxFunction) {
+                guard = MethodHandles.insertArguments(IS_FUNCTION, 0, ((LoxFunction) callee).declaration);
+                target = CALL_FUNCTION;
+            } else {
+                guard = MethodHandles.insertArguments(IS_SAME, 0, callee);
+                target = CALL_CALLABLE;
+            }
+            site.link(
+                    guard,
+                    target.asCollector(1, Object[].class, arguments.length).asType(type)
+            );
+        }
+
+        return call(site.token, callee, arguments, interpreter);
+    }
+
+    private static Object call(
+            final Token paren,
+            final Object callee,
+            final Object[] arguments,
+            final Interpreter interpreter
+    ) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+
+        final var function = (LoxCallable) callee;
+        if (arguments.length != function.arity()) {
+            throw new RuntimeError(
+                    paren,
+                    "Expected " + function.arity() + " arguments but got " + arguments.length + "."
+            );
+        }
+
+        return function.call(interpreter, Arrays.asList(arguments));
+    }
+
+    // The guards already checked the arity, and it can't change for the same callee
+    private static Object callFunction(final Object callee, final Object[] arguments, final Interpreter interpreter) {
+        return ((LoxFunction) callee).call(interpreter, Arrays.asList(arguments));
+    }
+
+    private static Object callCallable(final Object callee, final Object[] arguments, final Interpreter interpreter) {
+        return ((LoxCallable) callee).call(interpreter, Arrays.asList(arguments));
+    }
+
+    private static boolean isFunction(final Stmt.Function declaration, final Object callee) {
+        return callee instanceof LoxFunction && ((LoxFunction) callee).declaration == declaration;
+    }
+
+    private static boolean isSame(final Object expected, final Object actual) {
+        return expected == actual;
+    }
+
+    // Property gets, the site type is (object) -> value
+
+    static CallSite bootstrapGet(
+            final MethodHandles.Lookup lookup,
+            final String name,
+            final MethodType type,
+            final int property
+    ) throws ReflectiveOperationException {
+        final var site = new InlineCache(type, token(lookup, property));
+        site.initialize(
+                GET_MISS.bindTo(site).asType(type),
+                MethodHandles.insertArguments(GET, 1, site.token).asType(type)
+        );
+        return site;
+    }
+
+    private static Object getMiss(final InlineCache site, final Object object) {
+        if (object instanceof LoxInstance) {
+            final var klass = ((LoxInstance) object).klass;
+            final var method = klass.findMethod(site.token.lexeme);
+            site.link(
+                    MethodHandles.insertArguments(IS_INSTANCE_OF, 0, klass),
+                    MethodHandles.insertArguments(GET_PROPERTY, 0, site.token, method)
+            );
+            return ((LoxInstance) object).get(site.token, method);
+        }
+
+        return JvmRuntime.get(object, site.token);
+    }
+
+    private static Object getProperty(final Token name, final LoxFunction method, final Object object) {
+        return ((LoxInstance) object).get(name, method);
+    }
+
+    private static boolean isInstanceOf(final LoxClass klass, final Object object) {
+        return object instanceof LoxInstance && ((LoxInstance) object).klass == klass;
+    }
+
+    // Method calls, the site type is (object, field, arguments..., interpreter) -> result,
+    // where field is the one under the method name or LoxInstance.NO_FIELD
+
+    static CallSite bootstrapInvoke(
+            final MethodHandles.Lookup lookup,
+            final String name,
+            final MethodType type,
+            final int property,
+            final int paren
+    ) throws ReflectiveOperationException {
+        final var site = new InlineCache(type, token(lookup, paren));
+        final var method = token(lookup, property);
+        final var arity = type.parameterCount() - 3;
+        site.initialize(
+                MethodHandles.insertArguments(INVOKE_MISS, 0, site, method)
+                        .asCollector(Object[].class, type.parameterCount())
+                        .asType(type),
+                MethodHandles.insertArguments(INVOKE, 0, site.token, method)
+                        .asCollector(2, Object[].class, arity)
+                        .asType(type)
+        );
+        return site;
+    }
+
+    private static Object invokeMiss(final InlineCache site, final Token name, final Object[] values) {
+        final var object = values[0];
+        final var field = values[1];
+        final var interpreter = (Interpreter) values[values.length - 1];
+        final var arguments = Arrays.copyOfRange(values, 2, values.length - 1);
+
+        if (field == LoxInstance.NO_FIELD) {
+            final var instance = (LoxInstance) object;
+            final var method = instance.method(name);
+            if (method.arity() == arguments.length) {
+                site.link(
+                        MethodHandles.insertArguments(IS_METHOD_OF, 0, instance.klass),
+                        MethodHandles.insertArguments(CALL_METHOD, 0, method)
+                                .asCollector(2, Object[].class, arguments.length)
+                                .asType(site.type())
+                );
+            }
+        }
+
+        return invoke(site.token, name, object, field, arguments, interpreter);
+    }
+
+    private static Object invoke(
+            final Token paren,
+            final Token name,
+            final Object object,
+            final Object field,
+            final Object[] arguments,
+            final Interpreter interpreter
+    ) {
+        if (field != LoxInstance.NO_FIELD) return call(paren, field, arguments, interpreter);
+
+        final var instance = (LoxInstance) object;
+        final var method = instance.method(name);
+        if (arguments.length != method.arity()) {
+            throw new RuntimeError(
+                    paren,
+                    "Expected " + method.arity() + " arguments but got " + arguments.length + "."
+            );
+        }
+
+        return method.callMethod(interpreter, instance, Arrays.asList(arguments));
+    }
+
+    // The guard already checked the arity, and that the field doesn't shadow the method
+    private static Object callMethod(
+            final LoxFunction method,
+            final Object object,
+            final Object field,
+            final Object[] arguments,
+            final Interpreter interpreter
+    ) {
+        return method.callMethod(interpreter, (LoxInstance) object, Arrays.asList(arguments));
+    }
+
+    // JvmRuntime.field already made sure the object is an instance
+    private static boolean isMethodOf(final LoxClass klass, final Object object, final Object field) {
+        return field == LoxInstance.NO_FIELD && ((LoxInstance) object).klass == klass;
+    }
+}
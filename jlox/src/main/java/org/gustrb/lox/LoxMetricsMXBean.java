@@ -0,0 +1,30 @@
+package org.gustrb.lox;
+
+import java.util.Map;
+
+/**
+ * What --metrics publishes over JMX, as org.gustrb.lox:type=Metrics, see Metrics
+ */
+public interface LoxMetricsMXBean {
+    /**
+     * Calls made to each function, keyed by its name and the line it is declared on
+     */
+    Map<String, Long> getCalls();
+
+    /**
+     * Instances created of each class, keyed by its name
+     */
+    Map<String, Long> getInstances();
+
+    /**
+     * Environments created, the call frames that got reused aren't counted
+     */
+    long getEnvironments();
+
+    long getRuntimeErrors();
+
+    /**
+     * Milliseconds spent on each phase (scan, parse, resolve, optimize and execute) so far
+     */
+    Map<String, Double> getPhaseTimes();
+}
@@ -0,0 +1,225 @@
+package org.gustrb.lox;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Counters of what the running programs do, on for the whole process with
+ * --metrics: calls per function, instances per class, environments created,
+ * runtime errors and the time spent on each phase. They are published as an
+ * MXBean, and phases and slow calls are JFR events as well (Lox category),
+ * so a recording started with -XX:StartFlightRecording has them next to
+ * the JVM's own events.
+ *
+ * The hooks read current once and do nothing when it is null, which is all
+ * they cost without --metrics.
+ *
+ * When the Parser streams tokens from the Scanner the two run interleaved,
+ * so the parse phase includes the scanning, there's only a scan phase of
+ * its own with --packed-tokens.
+ */
+final class Metrics implements LoxMetricsMXBean {
+    private static final int TOP = 15;
+
+    // Null unless running with --metrics, set before any Lox code runs
+    static Metrics current;
+
+    // Keyed by name and line for functions, many can share a name, and by
+    // name for classes. Not by declaration, the REPL would keep every tree
+    // it ever compiled alive
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> instances = new ConcurrentHashMap<>();
+    private final LongAdder environments = new LongAdder();
+    private final LongAdder runtimeErrors = new LongAdder();
+    private final Map<String, LongAdder> phases = new ConcurrentHashMap<>();
+
+    @Name("org.gustrb.lox.Phase")
+    @Label("Lox Phase")
+    @Category("Lox")
+    @Description("A front end pass or the execution of a script")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("org.gustrb.lox.SlowCall")
+    @Label("Slow Lox Call")
+    @Category("Lox")
+    @Description("A call of a Lox function taking longer than the threshold, the calls it made included")
+    @Threshold("20 ms")
+    static final class SlowCallEvent extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        int line;
+    }
+
+    // Whether a recording wants slow calls, checked before creating an event on every call
+    private static final EventType SLOW_CALL = EventType.getEventType(SlowCallEvent.class);
+
+    /**
+     * A phase being timed, see start
+     */
+    static final class Timing {
+        private final Metrics metrics;
+        private final String phase;
+        private final long started = System.nanoTime();
+        private final PhaseEvent event = new PhaseEvent();
+
+        private Timing(final Metrics metrics, final String phase) {
+            this.metrics = metrics;
+            this.phase = phase;
+            event.phase = phase;
+            event.begin();
+        }
+    }
+
+    private Metrics() {}
+
+    /**
+     * Turns the counters on and registers them on the platform MBean server
+     */
+    static Metrics enable() {
+        final var metrics = new Metrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("org.gustrb.lox:type=Metrics"));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register the metrics MBean", e);
+        }
+        current = metrics;
+        return metrics;
+    }
+
+    /**
+     * Starts timing that phase, null when metrics are off
+     */
+    static Timing start(final String phase) {
+        final var metrics = current;
+        return metrics != null ? new Timing(metrics, phase) : null;
+    }
+
+    static void stop(final Timing timing) {
+        if (timing == null) return;
+
+        timing.event.commit();
+        timing.metrics.phases.computeIfAbsent(timing.phase, phase -> new LongAdder())
+                .add(System.nanoTime() - timing.started);
+    }
+
+    /**
+     * Counts a call of that function, the event it returns is committed once
+     * the call is done and only recorded when it took long enough. Null when
+     * no recording has slow calls enabled
+     */
+    SlowCallEvent call(final Stmt.Function function) {
+        count(function);
+        if (!SLOW_CALL.isEnabled()) return null;
+
+        final var event = new SlowCallEvent();
+        event.function = function.name.lexeme;
+        event.line = function.name.line;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Counts a call of that function, one made without a frame of its own (a tail call)
+     */
+    void count(final Stmt.Function function) {
+        final var name = function.name;
+        calls.computeIfAbsent(name.lexeme + ":" + name.line, key -> new LongAdder()).increment();
+    }
+
+    void instantiated(final LoxClass klass) {
+        instances.computeIfAbsent(klass.name, key -> new LongAdder()).increment();
+    }
+
+    void environment() {
+        environments.increment();
+    }
+
+    void runtimeError() {
+        runtimeErrors.increment();
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        final Map<String, Long> calls = new TreeMap<>();
+        for (final var entry : this.calls.entrySet()) {
+            calls.put(entry.getKey(), entry.getValue().sum());
+        }
+        return calls;
+    }
+
+    @Override
+    public Map<String, Long> getInstances() {
+        final Map<String, Long> instances = new TreeMap<>();
+        for (final var entry : this.instances.entrySet()) {
+            instances.put(entry.getKey(), entry.getValue().sum());
+        }
+        return instances;
+    }
+
+    @Override
+    public long getEnvironments() {
+        return environments.sum();
+    }
+
+    @Override
+    public long getRuntimeErrors() {
+        return runtimeErrors.sum();
+    }
+
+    @Override
+    public Map<String, Double> getPhaseTimes() {
+        final Map<String, Double> times = new LinkedHashMap<>();
+        // In the order they run
+        for (final var phase : new String[]{"scan", "parse", "resolve", "optimize", "execute"}) {
+            final var nanos = phases.get(phase);
+            if (nanos != null) times.put(phase, nanos.sum() / 1e6);
+        }
+        return times;
+    }
+
+    /**
+     * Prints the counters, the functions and classes with the most calls and instances first
+     */
+    void report(final PrintStream out) {
+        out.println("Metrics: " + getEnvironments() + " environments, " + getRuntimeErrors() + " runtime errors");
+        for (final var phase : getPhaseTimes().entrySet()) {
+            out.println(String.format("%12.3f ms  %s", phase.getValue(), phase.getKey()));
+        }
+        out.println("       calls  function");
+        for (final var entry : top(getCalls())) {
+            out.println(String.format("%12d  %s", entry.getValue(), entry.getKey()));
+        }
+        out.println("   instances  class");
+        for (final var entry : top(getInstances())) {
+            out.println(String.format("%12d  %s", entry.getValue(), entry.getKey()));
+        }
+    }
+
+    private static List<Map.Entry<String, Long>> top(final Map<String, Long> counts) {
+        final List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return entries.subList(0, Math.min(TOP, entries.size()));
+    }
+}
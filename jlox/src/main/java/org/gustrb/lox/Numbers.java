@@ -0,0 +1,29 @@
+package org.gustrb.lox;
+
+/**
+ * Boxing for the results of arithmetic. Lox numbers are all doubles, but
+ * scripts mostly count with small integers, so those share preallocated
+ * Doubles instead of allocating a new one for every operation
+ */
+final class Numbers {
+    private static final int MIN_CACHED = -128;
+    private static final int MAX_CACHED = 1023;
+    private static final Double[] CACHE = new Double[MAX_CACHED - MIN_CACHED + 1];
+
+    static {
+        for (var i = 0; i < CACHE.length; ++i)
+            CACHE[i] = (double) (i + MIN_CACHED);
+    }
+
+    private Numbers() {}
+
+    static Double box(final double value) {
+        final var integer = (int) value;
+        // Comparing the bits keeps -0.0 (and NaN) off the cache
+        if (integer >= MIN_CACHED && integer <= MAX_CACHED
+                && Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(integer)) {
+            return CACHE[integer - MIN_CACHED];
+        }
+        return value;
+    }
+}
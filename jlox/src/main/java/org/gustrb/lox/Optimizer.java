@@ -0,0 +1,287 @@
+package org.gustrb.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pass over the resolved trees computing what doesn't need to wait for
+ * the program to run: arithmetic, comparisons and concatenations of
+ * literals, '!', 'and' and 'or' on literals, and if (or while) statements
+ * whose condition is a literal lose the branches it never takes.
+ *
+ * Anything that would fail at runtime, like "1 + nil" or "-true", is left as
+ * it is so it still fails there, on the same token. Nodes with nothing to
+ * fold are kept as they are, and so are their parents. Rebuilt nodes keep the
+ * Resolver annotations of the ones they replace.
+ *
+ * The statements it returns null for are gone, either dead or literals
+ * evaluated for nothing.
+ */
+final class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> optimize(final List<Stmt> statements) {
+        final List<Stmt> optimized = new ArrayList<>(statements.size());
+        var changed = false;
+        for (final var stmt : statements) {
+            final var result = optimize(stmt);
+            if (result != null) optimized.add(result);
+            changed |= result != stmt;
+        }
+        return changed ? optimized : statements;
+    }
+
+    private Stmt optimize(final Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(final Expr expr) {
+        return expr.accept(this);
+    }
+
+    /**
+     * Same as optimize, for statements that can't just go away, the body of a while or the then branch of an if
+     */
+    private Stmt branch(final Stmt stmt) {
+        final var optimized = optimize(stmt);
+        if (optimized != null) return optimized;
+
+        final var empty = new Stmt.Block(List.of());
+        empty.scoped = false;
+        return empty;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(final Stmt.Block stmt) {
+        final var statements = optimize(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+
+        final var block = new Stmt.Block(statements);
+        block.scoped = stmt.scoped;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(final Stmt.Class stmt) {
+        final List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+        var changed = false;
+        for (final var method : stmt.methods) {
+            final var optimized = (Stmt.Function) optimize(method);
+            methods.add(optimized);
+            changed |= optimized != method;
+        }
+        if (!changed) return stmt;
+
+        final var klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+        klass.slot = stmt.slot;
+        return klass;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(final Stmt.Expression stmt) {
+        final var expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) return null;
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(final Stmt.Function stmt) {
+        final var body = optimize(stmt.body);
+        if (body == stmt.body) return stmt;
+
+        final var function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.slot = stmt.slot;
+        function.captures = stmt.captures;
+        function.captured = stmt.captured;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(final Stmt.If stmt) {
+        final var condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            final var taken = Interpreter.isTruthy(((Expr.Literal) condition).value) ? stmt.thenBranch : stmt.elseBranch;
+            return taken != null ? optimize(taken) : null;
+        }
+
+        final var thenBranch = branch(stmt.thenBranch);
+        final var elseBranch = stmt.elseBranch != null ? optimize(stmt.elseBranch) : null;
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(final Stmt.Print stmt) {
+        final var expression = optimize(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(final Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        final var value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        final var ret = new Stmt.Return(stmt.keyword, value);
+        ret.tail = stmt.tail && value instanceof Expr.Call;
+        return ret;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(final Stmt.While stmt) {
+        final var condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) return null;
+
+        final var body = branch(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitVarStmt(final Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+
+        final var initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+
+        final var declaration = new Stmt.Var(stmt.name, initializer);
+        declaration.slot = stmt.slot;
+        return declaration;
+    }
+
+    @Override
+    public Expr visitAssignExpr(final Expr.Assign expr) {
+        final var value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        final var assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(final Expr.Binary expr) {
+        final var left = optimize(expr.left);
+        final var right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            final var folded = fold(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (folded != null) return folded;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    /**
+     * What the operator gives on those values, or null when it fails on them
+     * and has to be left for the runtime to report
+     */
+    private static Expr.Literal fold(final Token operator, final Object left, final Object right) {
+        switch (operator.type) {
+            case EQUAL_EQUAL: return new Expr.Literal(Interpreter.isEqual(left, right));
+            case BANG_EQUAL: return new Expr.Literal(!Interpreter.isEqual(left, right));
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return new Expr.Literal((String) left + (String) right);
+                }
+                break;
+        }
+
+        // Every other operator only works on numbers
+        if (!(left instanceof Double) || !(right instanceof Double)) return null;
+
+        final var a = (double) left;
+        final var b = (double) right;
+        switch (operator.type) {
+            case GREATER: return new Expr.Literal(a > b);
+            case GREATER_EQUAL: return new Expr.Literal(a >= b);
+            case LESS: return new Expr.Literal(a < b);
+            case LESS_EQUAL: return new Expr.Literal(a <= b);
+            case MINUS: return new Expr.Literal(Numbers.box(a - b));
+            case PLUS: return new Expr.Literal(Numbers.box(a + b));
+            case SLASH: return new Expr.Literal(Numbers.box(a / b));
+            case STAR: return new Expr.Literal(Numbers.box(a * b));
+        }
+
+        return null;
+    }
+
+    @Override
+    public Expr visitCallExpr(final Expr.Call expr) {
+        final var callee = optimize(expr.callee);
+        final List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        var changed = callee != expr.callee;
+        for (final var argument : expr.arguments) {
+            final var optimized = optimize(argument);
+            arguments.add(optimized);
+            changed |= optimized != argument;
+        }
+        return changed ? new Expr.Call(callee, expr.paren, arguments) : expr;
+    }
+
+    @Override
+    public Expr visitGetExpr(final Expr.Get expr) {
+        final var object = optimize(expr.object);
+        return object == expr.object ? expr : new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(final Expr.Set expr) {
+        final var object = optimize(expr.object);
+        final var value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(final Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(final Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(final Expr.Grouping expr) {
+        // Parentheses only matter to the Parser
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(final Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(final Expr.Logical expr) {
+        final var left = optimize(expr.left);
+        final var right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            // 'or' stops on a truthy left and 'and' on a falsey one, otherwise it's worth the right
+            final var truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            return truthy == (expr.operator.type == TokenType.OR) ? left : right;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(final Expr.Unary expr) {
+        final var right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            final var value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (value instanceof Double) return new Expr.Literal(Numbers.box(-(double) value));
+        }
+
+        return right == expr.right ? expr : new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(final Expr.Variable expr) {
+        return expr;
+    }
+}
@@ -0,0 +1,115 @@
+package org.gustrb.lox;
+
+import java.util.Arrays;
+
+/**
+ * A whole script worth of tokens packed into parallel int arrays (type, start
+ * offset, length and line of each token) instead of a Token object apiece.
+ * Literals are rare, so they live on a side table along with the indexes of
+ * the tokens they belong to.
+ *
+ * Tokens are only materialized when the Parser asks for one, their lexemes
+ * coming from the same Lexemes table the Scanner interned them on.
+ */
+final class PackedTokens implements TokenSource {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private final Lexemes lexemes;
+
+    private int[] types = new int[256];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private int[] lines = new int[256];
+    private int count = 0;
+
+    private int[] literalTokens = new int[16];
+    private Object[] literals = new Object[16];
+    private int literalCount = 0;
+
+    private int current = 0;
+    // The last token materialized, the Parser usually asks for the same one a few times in a row
+    private int cachedIndex = -1;
+    private Token cached;
+
+    PackedTokens(final CharSequence source, final Lexemes lexemes) {
+        this.source = source;
+        this.lexemes = lexemes;
+    }
+
+    void add(final TokenType type, final int start, final int length, final int line, final Object literal) {
+        if (count == types.length) {
+            final var capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+
+        if (literal != null) {
+            if (literalCount == literals.length) {
+                literalTokens = Arrays.copyOf(literalTokens, literalCount * 2);
+                literals = Arrays.copyOf(literals, literalCount * 2);
+            }
+            literalTokens[literalCount] = count;
+            literals[literalCount] = literal;
+            literalCount++;
+        }
+
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    @Override
+    public TokenType peekType() {
+        return TYPES[types[current]];
+    }
+
+    @Override
+    public Token peek() {
+        return token(current);
+    }
+
+    @Override
+    public TokenType previousType() {
+        return TYPES[types[current - 1]];
+    }
+
+    @Override
+    public Token previous() {
+        return token(current - 1);
+    }
+
+    @Override
+    public void advance() {
+        if (peekType() != TokenType.EOF) current++;
+    }
+
+    private Token token(final int index) {
+        if (index != cachedIndex) {
+            final var start = starts[index];
+            cached = new Token(
+                    TYPES[types[index]],
+                    lexemes.intern(source, start, start + lengths[index]),
+                    literal(index),
+                    lines[index]
+            );
+            cachedIndex = index;
+        }
+        return cached;
+    }
+
+    private Object literal(final int index) {
+        // literalTokens is sorted, since tokens are added in order
+        final var position = Arrays.binarySearch(literalTokens, 0, literalCount, index);
+        return position >= 0 ? literals[position] : null;
+    }
+}
@@ -7,11 +7,64 @@ import java.util.List;
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current = 0;
+    private final TokenSource tokens;
+    private final Lox lox;
 
-    public Parser(final List<Token> tokens) {
+    /**
+     * Parses the tokens as the Scanner finds them
+     */
+    public Parser(final Scanner scanner, final Lox lox) {
+        this.tokens = new Streamed(scanner);
+        this.lox = lox;
+    }
+
+    /**
+     * Parses tokens already scanned, i.e. into their packed representation
+     */
+    Parser(final TokenSource tokens, final Lox lox) {
         this.tokens = tokens;
+        this.lox = lox;
+    }
+
+    /**
+     * Tokens pulled from the Scanner one at a time, only the current and the previous are kept
+     */
+    private static final class Streamed implements TokenSource {
+        private final Scanner scanner;
+        private Token current;
+        private Token previous;
+
+        Streamed(final Scanner scanner) {
+            this.scanner = scanner;
+            this.current = scanner.nextToken();
+        }
+
+        @Override
+        public TokenType peekType() {
+            return current.type;
+        }
+
+        @Override
+        public Token peek() {
+            return current;
+        }
+
+        @Override
+        public TokenType previousType() {
+            return previous.type;
+        }
+
+        @Override
+        public Token previous() {
+            return previous;
+        }
+
+        @Override
+        public void advance() {
+            if (current.type == TokenType.EOF) return;
+            previous = current;
+            current = scanner.nextToken();
+        }
     }
 
     public List<Stmt> parse() {
@@ -352,28 +405,27 @@ public class Parser {
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.peekType() == type;
     }
 
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    private void advance() {
+        tokens.advance();
     }
 
     private boolean isAtEnd() {
-        return peek().type == TokenType.EOF;
+        return tokens.peekType() == TokenType.EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.peek();
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.previous();
     }
 
     private ParseError error(final Token token, final String message) {
-        Lox.error(token, message);
+        lox.error(token, message);
         return new ParseError();
     }
 
@@ -381,9 +433,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == TokenType.SEMICOLON) return;
+            if (tokens.previousType() == TokenType.SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.peekType()) {
                 case CLASS: case FOR: case FUN: case IF: case PRINT:
                 case RETURN: case VAR: case WHILE:
                     return;
@@ -394,7 +446,10 @@ public class Parser {
     }
 
     private Token consume(final TokenType type, final String message) {
-        if (check(type)) return advance();
+        if (check(type)) {
+            advance();
+            return previous();
+        }
 
         throw error(peek(), message);
     }
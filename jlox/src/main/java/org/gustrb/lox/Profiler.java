@@ -0,0 +1,198 @@
+package org.gustrb.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sampling profiler working on Lox frames instead of Java ones: the
+ * Interpreter keeps a shadow stack with the function of every call (see
+ * LoxFunction.call) and the line each of them is at, and a daemon thread
+ * copies that stack every so often.
+ *
+ * A frame starts at the line its function is declared on. From there the
+ * tree engine moves it to every call, operator, variable or declaration it
+ * goes through, the closure engine only to calls and the jvm engine not at
+ * all.
+ *
+ * The stack is written by the thread running the program and read by the
+ * sampler without any lock, only its depth is volatile. A sample can catch a
+ * frame being replaced, which is fine for statistics and costs nothing to
+ * the program.
+ */
+final class Profiler {
+    // How many rows the tables on exit show
+    private static final int TOP = 15;
+
+    private final Path output;
+    private final int rate;
+    private final Thread sampler;
+    private volatile boolean running = true;
+
+    // The shadow stack, only ever written by the thread running Lox code
+    private String[] functions = new String[64];
+    private int[] lines = new int[64];
+    private volatile int depth = 0;
+
+    // Collapsed stack -> samples, only ever touched by the sampler
+    private final Map<String, Integer> stacks = new HashMap<>();
+    private int samples = 0;
+
+    /**
+     * Starts sampling right away, rate times per second
+     */
+    Profiler(final Path output, final int rate) {
+        this.output = output;
+        this.rate = rate;
+        this.sampler = new Thread(this::sample, "jlox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * A call of that function, at the line it is declared on until it gets to another one
+     */
+    void enter(final String function, final int line) {
+        final var depth = this.depth;
+        if (depth == functions.length) {
+            // The new arrays are complete before the sampler can see the new depth
+            functions = Arrays.copyOf(functions, depth * 2);
+            lines = Arrays.copyOf(lines, depth * 2);
+        }
+        functions[depth] = function;
+        lines[depth] = line;
+        this.depth = depth + 1;
+    }
+
+    /**
+     * A call in tail position takes the frame of the function that made it
+     */
+    void replace(final String function, final int line) {
+        final var top = depth - 1;
+        functions[top] = function;
+        lines[top] = line;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    /**
+     * Where the function on top of the stack is
+     */
+    void line(final int line) {
+        final var depth = this.depth;
+        if (depth > 0) lines[depth - 1] = line;
+    }
+
+    private void sample() {
+        final var interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final var stack = new StringBuilder();
+        while (running) {
+            LockSupport.parkNanos(interval);
+
+            final var depth = this.depth;
+            // Nothing running, i.e. the REPL waiting for a line
+            if (depth == 0) continue;
+
+            final var functions = this.functions;
+            final var lines = this.lines;
+            stack.setLength(0);
+            for (var i = 0; i < depth && i < functions.length; ++i) {
+                if (i > 0) stack.append(';');
+                stack.append(functions[i]);
+                if (lines[i] != 0) stack.append(':').append(lines[i]);
+            }
+            stacks.merge(stack.toString(), 1, Integer::sum);
+            samples++;
+        }
+    }
+
+    /**
+     * Stops sampling, writes the collapsed stacks (the input of flamegraph.pl,
+     * one "frame;frame;frame count" per line) and prints the functions and
+     * lines taking the most time
+     */
+    void report(final PrintStream out) throws IOException {
+        running = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        final List<String> collapsed = new ArrayList<>(stacks.size());
+        for (final var entry : stacks.entrySet()) {
+            collapsed.add(entry.getKey() + " " + entry.getValue());
+        }
+        collapsed.sort(null);
+        Files.write(output, collapsed, Charset.defaultCharset());
+
+        // Self is the samples a function (or line) is on top of the stack,
+        // total the ones it is anywhere on it, recursion counted once
+        final Map<String, Integer> self = new HashMap<>();
+        final Map<String, Integer> total = new HashMap<>();
+        final Map<String, Integer> selfLines = new HashMap<>();
+        final Set<String> seen = new HashSet<>();
+        for (final var entry : stacks.entrySet()) {
+            final var frames = entry.getKey().split(";");
+            final int count = entry.getValue();
+
+            final var leaf = frames[frames.length - 1];
+            self.merge(function(leaf), count, Integer::sum);
+            selfLines.merge(leaf, count, Integer::sum);
+
+            seen.clear();
+            for (final var frame : frames) {
+                final var function = function(frame);
+                if (seen.add(function)) total.merge(function, count, Integer::sum);
+            }
+        }
+
+        out.println("Profile: " + samples + " samples at " + rate + "/s, collapsed stacks in " + output);
+        out.println("  self%  total%  function");
+        for (final var function : top(total.keySet(), self, total)) {
+            out.println(String.format("%6.1f%% %6.1f%%  %s",
+                    percent(self.getOrDefault(function, 0)), percent(total.get(function)), function));
+        }
+        out.println("  self%  line");
+        for (final var line : top(selfLines.keySet(), selfLines, selfLines)) {
+            out.println(String.format("%6.1f%%  %s", percent(selfLines.get(line)), line));
+        }
+    }
+
+    // A frame is the function, followed by ':' and the line when it is known
+    private static String function(final String frame) {
+        final var colon = frame.lastIndexOf(':');
+        return colon != -1 ? frame.substring(0, colon) : frame;
+    }
+
+    // The keys with the most samples on the first table first, ties broken by the second one
+    private static List<String> top(
+            final Set<String> keys,
+            final Map<String, Integer> by,
+            final Map<String, Integer> then
+    ) {
+        final List<String> sorted = new ArrayList<>(keys);
+        sorted.sort((a, b) -> {
+            final var order = Integer.compare(by.getOrDefault(b, 0), by.getOrDefault(a, 0));
+            return order != 0 ? order : Integer.compare(then.getOrDefault(b, 0), then.getOrDefault(a, 0));
+        });
+        return sorted.subList(0, Math.min(TOP, sorted.size()));
+    }
+
+    private double percent(final int count) {
+        return 100.0 * count / samples;
+    }
+}
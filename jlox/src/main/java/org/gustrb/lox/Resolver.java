@@ -6,6 +6,11 @@ import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // Version of the annotations left on the trees (slot, depth, scoped,
+    // captures, captured, tail). AstCache keeps them along with the trees,
+    // bump it whenever any rule computing them changes so old entries miss
+    static final int VERSION = 1;
+
     private enum FunctionType {
         NONE,
         FUNCTION,
@@ -19,27 +24,104 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS,
     }
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private static class Local {
+        final int slot;
+        boolean defined = false;
+
+        Local(final int slot) {
+            this.slot = slot;
+        }
+    }
+
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+        // The scope whose environment the locals live on, itself unless it
+        // is a block flattened into the environment of an enclosing scope
+        final Scope frame;
+        // The function this is the scope of the parameters and body of, if it is one
+        Stmt.Function function;
+        int slotCount = 0;
+
+        Scope() {
+            this.frame = this;
+        }
+
+        Scope(final Scope frame) {
+            this.frame = frame;
+        }
+
+        Local declare(final String name) {
+            final var local = new Local(frame.slotCount++);
+            locals.put(name, local);
+            return local;
+        }
+    }
+
+    private final Lox lox;
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
-
-    public Resolver(final Interpreter interpreter) {
-        this.interpreter = interpreter;
+    public Resolver(final Lox lox) {
+        this.lox = lox;
     }
 
     @Override
     public Void visitBlockStmt(final Stmt.Block stmt) {
-        beginScope();
+        // A block only gets an environment of its own when a closure could
+        // capture its locals, otherwise it runs on the enclosing one (with its
+        // locals on slots of their own there), so i.e. the body of a loop
+        // doesn't allocate a new scope on every iteration
+        if (!declaresLocals(stmt.statements)) {
+            stmt.scoped = false;
+            resolve(stmt.statements);
+            return null;
+        }
+
+        if (!scopes.isEmpty() && !declaresFunctions(stmt.statements)) {
+            stmt.scoped = false;
+            scopes.push(new Scope(scopes.peek().frame));
+        } else {
+            beginScope();
+        }
         resolve(stmt.statements);
         endScope();
         return null;
     }
 
+    private static boolean declaresLocals(final List<Stmt> statements) {
+        for (final var stmt : statements) {
+            if (stmt instanceof Stmt.Var || stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether there is any function (or method) declared anywhere in those
+     * statements, the only way for a closure to be created from them
+     */
+    private static boolean declaresFunctions(final List<Stmt> statements) {
+        for (final var stmt : statements) {
+            if (declaresFunctions(stmt)) return true;
+        }
+        return false;
+    }
+
+    private static boolean declaresFunctions(final Stmt stmt) {
+        if (stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) return true;
+        if (stmt instanceof Stmt.Block) return declaresFunctions(((Stmt.Block) stmt).statements);
+        if (stmt instanceof Stmt.While) return declaresFunctions(((Stmt.While) stmt).body);
+        if (stmt instanceof Stmt.If) {
+            final var ifStmt = (Stmt.If) stmt;
+            return declaresFunctions(ifStmt.thenBranch)
+                    || (ifStmt.elseBranch != null && declaresFunctions(ifStmt.elseBranch));
+        }
+        return false;
+    }
+
     @Override
     public Void visitVarStmt(final Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -51,11 +133,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitClassStmt(Stmt.Class stmt) {
         final var enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
 
         if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-            Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+            lox.error(stmt.superclass.name, "A class can't inherit from itself.");
         }
 
         if (stmt.superclass != null) {
@@ -65,11 +147,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            scopes.peek().declare("super").defined = true;
         }
 
         beginScope();
-        scopes.peek().put("this", true);
+        scopes.peek().declare("this").defined = true;
 
         for (final var method : stmt.methods) {
             var declaration = FunctionType.METHOD;
@@ -93,30 +175,31 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitThisExpr(final Expr.This expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'this' outside of a class");
+            lox.error(expr.keyword, "Can't use 'this' outside of a class");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
+        if (expr.depth != -1) expr.slot = slotOf(expr.keyword);
         return null;
     }
 
     @Override
     public Void visitSuperExpr(final Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
-            Lox.error(expr.keyword, "Can't use 'super' outside of a class");
+            lox.error(expr.keyword, "Can't use 'super' outside of a class");
         }
 
         if (currentClass != ClassType.SUBCLASS) {
-            Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+            lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        expr.depth = resolveLocal(expr.keyword);
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(final Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name);
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -145,14 +228,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitReturnStmt(final Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Lox.error(stmt.keyword, "Can't return from top-level code.");
+            lox.error(stmt.keyword, "Can't return from top-level code.");
         }
 
         if (stmt.value != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+                lox.error(stmt.keyword, "Can't return a value from an initializer.");
             }
 
+            // Nothing runs after a 'return' in the function, so a call it returns is its last
+            stmt.tail = stmt.value instanceof Expr.Call;
             resolve(stmt.value);
         }
         return null;
@@ -167,17 +252,22 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(final Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name, "Can't read local variable in its own initializer.");
+        if (!scopes.isEmpty()) {
+            final var local = scopes.peek().locals.get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                lox.error(expr.name, "Can't read local variable in its own initializer.");
+            }
         }
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth != -1) expr.slot = slotOf(expr.name);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(final Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        expr.depth = resolveLocal(expr.name);
+        if (expr.depth != -1) expr.slot = slotOf(expr.name);
         return null;
     }
 
@@ -247,22 +337,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
-    private void declare(final Token name) {
-        if (scopes.isEmpty()) return;
+    /**
+     * Returns the slot the local got on its environment, or -1 for a global
+     */
+    private int declare(final Token name) {
+        if (scopes.isEmpty()) return -1;
         final var scope = scopes.peek();
 
-        if (scope.containsKey(name.lexeme)) {
-            Lox.error(name, "There is already a variable with this name in this scope");
+        if (scope.locals.containsKey(name.lexeme)) {
+            lox.error(name, "There is already a variable with this name in this scope");
         }
 
-        scope.put(name.lexeme, false);
+        return scope.declare(name.lexeme).slot;
     }
 
     private void resolveFunction(final Stmt.Function function, final FunctionType type) {
         final var enclosingFunction = currentFunction;
         currentFunction = type;
 
+        // Until a local from outside of it is used from its body, see capture
+        function.captures = false;
+        function.captured = false;
+
         beginScope();
+        scopes.peek().function = function;
         for (final var param : function.params) {
             declare(param);
             define(param);
@@ -274,20 +372,56 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void define(final Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().locals.get(name.lexeme).defined = true;
     }
 
-    private void resolveLocal(final Expr expr, final Token name) {
+    /**
+     * Returns how many environments away from the current one the variable was declared,
+     * or -1 when it was not found in any of them and must be a global
+     */
+    private int resolveLocal(final Token name) {
+        var depth = 0;
         for (int i = scopes.size() - 1; i >= 0; --i) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - i - 1);
-                return;
+            final var scope = scopes.get(i);
+            if (scope.locals.containsKey(name.lexeme)) {
+                capture(i);
+                return depth;
             }
+            // Flattened blocks share the environment of the scope they are in
+            if (scope.frame == scope) depth++;
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the functions a local declared on that scope is used from as
+     * capturing it, they need their closure. Each of them also keeps the frame
+     * of the function around it alive through that closure, so those have
+     * their frame captured as well
+     */
+    private void capture(final int scope) {
+        var crossed = false;
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            final var function = scopes.get(i).function;
+            if (function == null) continue;
+
+            if (crossed) function.captured = true;
+            if (i <= scope) return;
+            function.captures = true;
+            crossed = true;
+        }
+    }
+
+    private int slotOf(final Token name) {
+        for (int i = scopes.size() - 1; i >= 0; --i) {
+            final var local = scopes.get(i).locals.get(name.lexeme);
+            if (local != null) return local.slot;
         }
+        return -1;
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<>());
+        scopes.push(new Scope());
     }
 
     private void endScope() {
@@ -1,109 +1,212 @@
 package org.gustrb.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+/**
+ * Scans the tokens out of any CharSequence, i.e. a CharBuffer decoded from a
+ * memory mapped script, handing them one at a time to the Parser.
+ *
+ * Punctuation and keywords share static lexemes, and identifiers (as well as
+ * numbers and strings) are interned, so most tokens don't copy the source.
+ */
 public class Scanner {
-    private static final Map<String, TokenType> keywords;
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final CharSequence source;
+    // The session errors are reported to
+    private final Lox lox;
+    private final Lexemes lexemes = new Lexemes();
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // Lexeme and literal of the token scanToken just found
+    private String lexeme;
+    private Object literal;
 
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", TokenType.AND);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("fun", TokenType.FUN);
-        keywords.put("if", TokenType.IF);
-        keywords.put("nil", TokenType.NIL);
-        keywords.put("or", TokenType.OR);
-        keywords.put("print", TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super", TokenType.SUPER);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("var", TokenType.VAR);
-        keywords.put("while", TokenType.WHILE);
-    }
-
-    public Scanner(final String source) {
+    public Scanner(final CharSequence source, final Lox lox) {
         this.source = source;
+        this.lox = lox;
+    }
+
+    /**
+     * Scans the source from that offset on, which is on that line and
+     * between two tokens, i.e. right after a ';'
+     */
+    Scanner(final CharSequence source, final Lox lox, final int from, final int line) {
+        this(source, lox);
+        this.current = from;
+        this.line = line;
     }
 
     public List<Token> scanTokens() {
+        final List<Token> tokens = new ArrayList<>();
+        Token token;
+        do {
+            token = nextToken();
+            tokens.add(token);
+        } while (token.type != TokenType.EOF);
+        return tokens;
+    }
+
+    /**
+     * Scans the next token, once the source is over it keeps handing back EOF
+     */
+    public Token nextToken() {
+        final var type = scan();
+        return new Token(type, lexeme, literal, line);
+    }
+
+    /**
+     * Offset on the source of the first character of the last token scanned
+     */
+    int tokenStart() {
+        return start;
+    }
+
+    /**
+     * Offset on the source right past the last character of the last token scanned
+     */
+    int tokenEnd() {
+        return current;
+    }
+
+    /**
+     * Scans all the tokens at once into their packed representation, without creating any Token
+     */
+    public PackedTokens scanPacked() {
+        final var tokens = new PackedTokens(source, lexemes);
+        TokenType type;
+        do {
+            type = scan();
+            tokens.add(type, start, current - start, line, literal);
+        } while (type != TokenType.EOF);
+        return tokens;
+    }
+
+    private TokenType scan() {
         while (!isAtEnd()) {
             start = current;
-            scanToken();
+            literal = null;
+            final var type = scanToken();
+            if (type != null) return type;
         }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
-        return tokens;
+        start = current;
+        lexeme = "";
+        literal = null;
+        return TokenType.EOF;
     }
 
-    private void scanToken() {
+    /**
+     * The type of the token starting at the current character, or null for
+     * whitespace, comments and errors
+     */
+    private TokenType scanToken() {
         final var currentChar = advance();
         switch (currentChar) {
-            case '(': addToken(TokenType.LEFT_PAREN); break;
-            case ')': addToken(TokenType.RIGHT_PAREN); break;
-            case '{': addToken(TokenType.LEFT_BRACE); break;
-            case '}': addToken(TokenType.RIGHT_BRACE); break;
-            case ',': addToken(TokenType.COMMA); break;
-            case '.': addToken(TokenType.DOT); break;
-            case '-': addToken(TokenType.MINUS); break;
-            case '+': addToken(TokenType.PLUS); break;
-            case ';': addToken(TokenType.SEMICOLON); break;
-            case '*': addToken(TokenType.STAR); break;
-            case '!': addToken(match('=') ? TokenType.BANG_EQUAL : TokenType.BANG); break;
-            case '=': addToken(match('=') ? TokenType.EQUAL_EQUAL : TokenType.EQUAL); break;
-            case '<': addToken(match('=') ? TokenType.LESS_EQUAL : TokenType.LESS); break;
-            case '>': addToken(match('=') ? TokenType.GREATER_EQUAL : TokenType.GREATER); break;
-            case '"': string(); break;
+            case '(': return token(TokenType.LEFT_PAREN, "(");
+            case ')': return token(TokenType.RIGHT_PAREN, ")");
+            case '{': return token(TokenType.LEFT_BRACE, "{");
+            case '}': return token(TokenType.RIGHT_BRACE, "}");
+            case ',': return token(TokenType.COMMA, ",");
+            case '.': return token(TokenType.DOT, ".");
+            case '-': return token(TokenType.MINUS, "-");
+            case '+': return token(TokenType.PLUS, "+");
+            case ';': return token(TokenType.SEMICOLON, ";");
+            case '*': return token(TokenType.STAR, "*");
+            case '!': return match('=') ? token(TokenType.BANG_EQUAL, "!=") : token(TokenType.BANG, "!");
+            case '=': return match('=') ? token(TokenType.EQUAL_EQUAL, "==") : token(TokenType.EQUAL, "=");
+            case '<': return match('=') ? token(TokenType.LESS_EQUAL, "<=") : token(TokenType.LESS, "<");
+            case '>': return match('=') ? token(TokenType.GREATER_EQUAL, ">=") : token(TokenType.GREATER, ">");
+            case '"': return string();
             case '/':
                 if (match('/')) {
                     // skip the comment :P
                     while (peek() != '\n' && !isAtEnd()) advance();
-                } else {
-                    addToken(TokenType.SLASH);
+                    return null;
                 }
-                break;
+                return token(TokenType.SLASH, "/");
 
             // Ignore whitespace :)
             case ' ': case '\r': case '\t':
-                break;
+                return null;
 
             case '\n':
                 line++;
-                break;
+                return null;
             default:
                 if (isDigit(currentChar)) {
-                    number();
+                    return number();
                 } else if(isAlpha(currentChar)) {
-                    identifier();
-                } else {
-                    Lox.error(line, "Unexpected character.");
+                    return identifier();
                 }
-                break;
+
+                lox.error(line, "Unexpected character.");
+                return null;
         }
     }
 
-    private void identifier() {
+    private TokenType identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        final var text = source.substring(start, current);
-        var type = keywords.get(text);
-        if (type == null) type = TokenType.IDENTIFIER;
-        addToken(type);
+        // Keywords keep their static lexeme, only real identifiers are interned
+        final var type = identifierType();
+        if (type != TokenType.IDENTIFIER) return type;
+        return token(type, lexemes.intern(source, start, current));
+    }
+
+    /**
+     * Picks out the keywords by their first characters, like clox's identifierType
+     */
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword(1, "and", TokenType.AND);
+            case 'c': return checkKeyword(1, "class", TokenType.CLASS);
+            case 'e': return checkKeyword(1, "else", TokenType.ELSE);
+            case 'i': return checkKeyword(1, "if", TokenType.IF);
+            case 'n': return checkKeyword(1, "nil", TokenType.NIL);
+            case 'o': return checkKeyword(1, "or", TokenType.OR);
+            case 'p': return checkKeyword(1, "print", TokenType.PRINT);
+            case 'r': return checkKeyword(1, "return", TokenType.RETURN);
+            case 's': return checkKeyword(1, "super", TokenType.SUPER);
+            case 'v': return checkKeyword(1, "var", TokenType.VAR);
+            case 'w': return checkKeyword(1, "while", TokenType.WHILE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword(2, "false", TokenType.FALSE);
+                        case 'o': return checkKeyword(2, "for", TokenType.FOR);
+                        case 'u': return checkKeyword(2, "fun", TokenType.FUN);
+                    }
+                }
+                break;
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword(2, "this", TokenType.THIS);
+                        case 'r': return checkKeyword(2, "true", TokenType.TRUE);
+                    }
+                }
+                break;
+        }
+
+        return TokenType.IDENTIFIER;
     }
 
-    private void number() {
+    /**
+     * Whether the current lexeme is that keyword, its first characters already matched
+     */
+    private TokenType checkKeyword(final int matched, final String keyword, final TokenType type) {
+        if (current - start != keyword.length()) return TokenType.IDENTIFIER;
+
+        for (var i = matched; i < keyword.length(); ++i) {
+            if (source.charAt(start + i) != keyword.charAt(i)) return TokenType.IDENTIFIER;
+        }
+
+        return token(type, keyword);
+    }
+
+    private TokenType number() {
         while (isDigit(peek())) advance();
 
         // If we are handling a double
@@ -111,27 +214,29 @@ public class Scanner {
             advance();
             while (isDigit(peek())) advance();
         }
-        final var actual = Double.parseDouble(source.substring(start, current));
-        addToken(TokenType.NUMBER, actual);
+
+        final var text = lexemes.intern(source, start, current);
+        literal = Numbers.box(Double.parseDouble(text));
+        return token(TokenType.NUMBER, text);
     }
 
-    private void string() {
+    private TokenType string() {
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line++;
             advance();
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
-            return;
+            lox.error(line, "Unterminated string.");
+            return null;
         }
 
         // Removing the closing "
         advance();
 
         // +1 & -1 so we can not add the ""
-        final var value = source.substring(start + 1, current - 1);
-        addToken(TokenType.STRING, value);
+        literal = lexemes.intern(source, start + 1, current - 1);
+        return token(TokenType.STRING, lexemes.intern(source, start, current));
     }
 
     private boolean match(final char expected) {
@@ -173,12 +278,8 @@ public class Scanner {
         return source.charAt(current++);
     }
 
-    private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        final var text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+    private TokenType token(final TokenType type, final String lexeme) {
+        this.lexeme = lexeme;
+        return type;
     }
 }
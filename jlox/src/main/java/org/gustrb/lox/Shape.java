@@ -0,0 +1,48 @@
+package org.gustrb.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of the fields of a LoxInstance, a.k.a. its hidden class.
+ *
+ * Each LoxClass starts its instances on an empty shape, and adding a field
+ * moves the instance to the shape with that field appended. Those transitions
+ * are cached, so instances of the same class that get the same fields in the
+ * same order end up sharing one Shape, and only keep an Object[] of values.
+ */
+final class Shape {
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        this.slots = Map.of();
+    }
+
+    private Shape(final Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * The index of that field on the values of the instance, or -1 if this shape has no such field
+     */
+    int slot(final String name) {
+        final var slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    Shape with(final String name) {
+        var next = transitions.get(name);
+        if (next == null) {
+            final var nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, slots.size());
+            next = new Shape(nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
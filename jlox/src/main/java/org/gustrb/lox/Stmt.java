@@ -24,6 +24,7 @@ abstract class Stmt {
             return visitor.visitBlockStmt(this);
         }
         final List<Stmt> statements;
+        boolean scoped = true;
     }
     static class Class extends Stmt {
         public Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
@@ -39,6 +40,7 @@ abstract class Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        int slot = -1;
     }
     static class Expression extends Stmt {
         public Expression(Expr expression) {
@@ -65,6 +67,9 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot = -1;
+        boolean captures = true;
+        boolean captured = true;
     }
     static class If extends Stmt {
         public If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -104,6 +109,7 @@ abstract class Stmt {
         }
         final Token keyword;
         final Expr value;
+        boolean tail = false;
     }
     static class While extends Stmt {
         public While(Expr condition, Stmt body) {
@@ -130,6 +136,7 @@ abstract class Stmt {
         }
         final Token name;
         final Expr initializer;
+        int slot = -1;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
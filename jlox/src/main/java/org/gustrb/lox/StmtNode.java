@@ -0,0 +1,223 @@
+package org.gustrb.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A statement already compiled by the ClosureCompiler, see ExprNode. Running
+ * it hands back how it completed, see Completion
+ */
+abstract class StmtNode {
+    abstract Object execute(Environment environment);
+
+    static Object executeAll(final StmtNode[] statements, final Environment environment) {
+        for (final var statement : statements) {
+            final var completion = statement.execute(environment);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    static final class Expression extends StmtNode {
+        private final ExprNode expression;
+
+        Expression(final ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            expression.evaluate(environment);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Print extends StmtNode {
+        private final ExprNode expression;
+
+        Print(final ExprNode expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            System.out.println(Interpreter.stringfy(expression.evaluate(environment)));
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Var extends StmtNode {
+        private final String name;
+        private final int slot;
+        private final ExprNode initializer;
+
+        Var(final String name, final int slot, final ExprNode initializer) {
+            this.name = name;
+            this.slot = slot;
+            this.initializer = initializer;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            final var value = initializer != null
+                    ? initializer.evaluate(environment)
+                    : null;
+            environment.defineAt(slot, name, value);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Block extends StmtNode {
+        private final StmtNode[] statements;
+
+        Block(final StmtNode[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            return executeAll(statements, new Environment(environment));
+        }
+    }
+
+    /**
+     * A block the Resolver flattened into the enclosing environment
+     */
+    static final class Sequence extends StmtNode {
+        private final StmtNode[] statements;
+
+        Sequence(final StmtNode[] statements) {
+            this.statements = statements;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            return executeAll(statements, environment);
+        }
+    }
+
+    static final class If extends StmtNode {
+        private final ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(final ExprNode condition, final StmtNode thenBranch, final StmtNode elseBranch) {
+            this.condition = condition;
+            this.thenBranch = thenBranch;
+            this.elseBranch = elseBranch;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            if (Interpreter.isTruthy(condition.evaluate(environment))) {
+                return thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                return elseBranch.execute(environment);
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class While extends StmtNode {
+        private final ExprNode condition;
+        private final StmtNode body;
+
+        While(final ExprNode condition, final StmtNode body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            while (Interpreter.isTruthy(condition.evaluate(environment))) {
+                final var completion = body.execute(environment);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Return extends StmtNode {
+        private final ExprNode value;
+
+        Return(final ExprNode value) {
+            this.value = value;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            return value != null ? value.evaluate(environment) : null;
+        }
+    }
+
+    static final class Function extends StmtNode {
+        private final Stmt.Function declaration;
+        private final StmtNode[] body;
+
+        Function(final Stmt.Function declaration, final StmtNode[] body) {
+            this.declaration = declaration;
+            this.body = body;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            final var function = new CompiledFunction(declaration, environment, false, body);
+            environment.defineAt(declaration.slot, declaration.name.lexeme, function);
+            return Completion.NORMAL;
+        }
+    }
+
+    static final class Class extends StmtNode {
+        private final Token name;
+        private final int slot;
+        private final ExprNode superclass;
+        private final Token superclassName;
+        private final Stmt.Function[] methods;
+        private final StmtNode[][] bodies;
+
+        Class(
+                final Token name,
+                final int slot,
+                final ExprNode superclass,
+                final Token superclassName,
+                final Stmt.Function[] methods,
+                final StmtNode[][] bodies
+        ) {
+            this.name = name;
+            this.slot = slot;
+            this.superclass = superclass;
+            this.superclassName = superclassName;
+            this.methods = methods;
+            this.bodies = bodies;
+        }
+
+        @Override
+        Object execute(final Environment environment) {
+            Object superklass = null;
+            var methodEnvironment = environment;
+
+            if (superclass != null) {
+                superklass = superclass.evaluate(environment);
+                if (!(superklass instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class");
+                }
+
+                methodEnvironment = new Environment(environment);
+                methodEnvironment.define("super", superklass);
+            }
+
+            final Map<String, LoxFunction> functions = new HashMap<>();
+            for (var i = 0; i < methods.length; ++i) {
+                final var method = methods[i];
+                final var isInitializer = method.name.lexeme.equals("init");
+                functions.put(
+                        method.name.lexeme,
+                        new CompiledFunction(method, methodEnvironment, isInitializer, bodies[i])
+                );
+            }
+
+            environment.defineAt(slot, name.lexeme, new LoxClass(name.lexeme, (LoxClass) superklass, functions));
+            return Completion.NORMAL;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.gustrb.lox;
+
+import java.util.List;
+
+/**
+ * What a 'return' of a call in tail position (see Resolver) completes with
+ * on the Interpreter: the call, already checked and with its arguments
+ * evaluated, left for LoxFunction to make once the function returning it is
+ * done, see Completion
+ */
+final class TailCall {
+    final LoxFunction function;
+    final Environment closure;
+    final List<Object> arguments;
+
+    TailCall(final LoxFunction function, final Environment closure, final List<Object> arguments) {
+        this.function = function;
+        this.closure = closure;
+        this.arguments = arguments;
+    }
+}
@@ -0,0 +1,22 @@
+package org.gustrb.lox;
+
+/**
+ * Where the Parser reads its tokens from, it only ever looks at the current
+ * token and the one it just consumed. The types can be checked on their own
+ * so sources that don't keep Token objects around only create the ones the
+ * Parser actually puts on the AST or reports errors on
+ */
+interface TokenSource {
+    TokenType peekType();
+
+    Token peek();
+
+    TokenType previousType();
+
+    Token previous();
+
+    /**
+     * Moves on to the next token, staying on EOF once it gets there
+     */
+    void advance();
+}
@@ -25,32 +25,38 @@ public class AstGenerator {
             System.exit(65);
         }
 
+        // Fields listed after the '|' are not part of the constructor, they
+        // are left mutable so later passes (i.e. the Resolver) can annotate the node
         final var outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign  : Token name, Expr value",
+        final var exprTypes = Arrays.asList(
+                "Assign  : Token name, Expr value | int depth = -1, int slot = -1",
                 "Binary  : Expr left, Token operator, Expr right",
                 "Call    : Expr callee, Token paren, List<Expr> arguments",
                 "Get     : Expr object, Token name",
                 "Set     : Expr object, Token name, Expr value",
-                "Super   : Token keyword, Token method",
-                "This    : Token keyword",
+                "Super   : Token keyword, Token method | int depth = -1",
+                "This    : Token keyword | int depth = -1, int slot = -1",
                 "Grouping: Expr expression",
                 "Literal : Object value",
                 "Logical : Expr left, Token operator, Expr right",
                 "Unary   : Token operator, Expr right",
-                "Variable: Token name"
-        ));
-        defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Variable: Token name | int depth = -1, int slot = -1"
+        );
+        final var stmtTypes = Arrays.asList(
+                "Block      : List<Stmt> statements | boolean scoped = true",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot = -1",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body | int slot = -1, boolean captures = true, boolean captured = true",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
+                "Return     : Token keyword, Expr value | boolean tail = false",
                 "While      : Expr condition, Stmt body",
-                "Var        : Token name, Expr initializer"
-        ));
+                "Var        : Token name, Expr initializer | int slot = -1"
+        );
+
+        defineAst(outputDir, "Expr", exprTypes);
+        defineAst(outputDir, "Stmt", stmtTypes);
+        defineCodec(outputDir, exprTypes, stmtTypes);
     }
 
     private static void defineAst(final String outputDir, final String baseName, final List<String> types) throws IOException {
@@ -66,8 +72,10 @@ public class AstGenerator {
 
         for (final var type : types) {
             final var className = type.split(":")[0].trim();
-            final var fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            final var allFields = type.split(":")[1].split("\\|");
+            final var fields = allFields[0].trim();
+            final var annotations = allFields.length > 1 ? allFields[1].trim() : null;
+            defineType(writer, baseName, className, fields, annotations);
         }
 
         writer.println();
@@ -81,7 +89,8 @@ public class AstGenerator {
             final PrintWriter writer,
             final String baseName,
             final String className,
-            final String fieldsList
+            final String fieldsList,
+            final String annotationsList
     ) {
         writer.println(TABULATION + "static class " + className + " extends " + baseName + " {");
 
@@ -105,6 +114,11 @@ public class AstGenerator {
         for (final var field : fields)
             writer.println(TABULATION + TABULATION + "final " + field + ";");
 
+        if (annotationsList != null) {
+            for (final var annotation : annotationsList.split(", "))
+                writer.println(TABULATION + TABULATION + annotation + ";");
+        }
+
         writer.println(TABULATION + "}");
     }
 
@@ -117,4 +131,190 @@ public class AstGenerator {
         }
         writer.println(TABULATION + "}");
     }
+
+    /**
+     * Generates AstCodec, the binary encoding of both trees used by the AstCache.
+     * Every node is written as its tag (its position on the list of types, plus
+     * one since 0 means null) followed by its fields and annotations in order
+     */
+    private static void defineCodec(
+            final String outputDir,
+            final List<String> exprTypes,
+            final List<String> stmtTypes
+    ) throws IOException {
+        final var path = outputDir + "/AstCodec.java";
+        final var writer = new PrintWriter(path, "UTF-8");
+
+        writer.println("package org.gustrb.lox;");
+        writer.println();
+        writer.println("import java.util.ArrayList;");
+        writer.println("import java.util.List;");
+        writer.println();
+        writer.println("/**");
+        writer.println(" * Binary encoding of the Expr and Stmt trees, along with the Resolver's");
+        writer.println(" * annotations, see AstCache. Generated by AstGenerator with the trees themselves");
+        writer.println(" */");
+        writer.println("final class AstCodec {");
+        // Caches written by a different version of the trees can't be read back,
+        // the annotations the Resolver leaves on them are versioned by Resolver.VERSION
+        writer.println(TABULATION + "static final int SCHEMA = " + (exprTypes + "|" + stmtTypes).hashCode() + ";");
+        writer.println();
+        writer.println(TABULATION + "private AstCodec() {}");
+        writer.println();
+
+        writer.println(TABULATION + "static void write(final List<Stmt> statements, final AstCache.Output out) {");
+        writer.println(TABULATION + TABULATION + "new Writer(out).stmts(statements);");
+        writer.println(TABULATION + "}");
+        writer.println();
+        writer.println(TABULATION + "static List<Stmt> read(final AstCache.Input in) {");
+        writer.println(TABULATION + TABULATION + "return readStmts(in);");
+        writer.println(TABULATION + "}");
+        writer.println();
+
+        defineCodecWriter(writer, exprTypes, stmtTypes);
+        defineCodecReader(writer, "Expr", exprTypes);
+        defineCodecReader(writer, "Stmt", stmtTypes);
+
+        writer.println("}");
+        writer.close();
+    }
+
+    private static void defineCodecWriter(
+            final PrintWriter writer,
+            final List<String> exprTypes,
+            final List<String> stmtTypes
+    ) {
+        final var indent = TABULATION + TABULATION;
+        writer.println(TABULATION + "private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {");
+        writer.println(indent + "private final AstCache.Output out;");
+        writer.println();
+        writer.println(indent + "Writer(final AstCache.Output out) {");
+        writer.println(indent + TABULATION + "this.out = out;");
+        writer.println(indent + "}");
+
+        for (final var baseName : Arrays.asList("Expr", "Stmt")) {
+            final var variable = baseName.toLowerCase();
+            writer.println();
+            writer.println(indent + "void " + variable + "(final " + baseName + " " + variable + ") {");
+            writer.println(indent + TABULATION + "if (" + variable + " == null) {");
+            writer.println(indent + TABULATION + TABULATION + "out.tag(0);");
+            writer.println(indent + TABULATION + "} else {");
+            writer.println(indent + TABULATION + TABULATION + variable + ".accept(this);");
+            writer.println(indent + TABULATION + "}");
+            writer.println(indent + "}");
+            writer.println();
+            writer.println(indent + "void " + variable + "s(final List<? extends " + baseName + "> " + variable + "s) {");
+            writer.println(indent + TABULATION + "out.count(" + variable + "s.size());");
+            writer.println(indent + TABULATION + "for (final var " + variable + " : " + variable + "s)");
+            writer.println(indent + TABULATION + TABULATION + variable + "(" + variable + ");");
+            writer.println(indent + "}");
+        }
+
+        defineCodecVisits(writer, "Expr", exprTypes);
+        defineCodecVisits(writer, "Stmt", stmtTypes);
+        writer.println(TABULATION + "}");
+        writer.println();
+    }
+
+    private static void defineCodecVisits(final PrintWriter writer, final String baseName, final List<String> types) {
+        final var indent = TABULATION + TABULATION;
+        final var variable = baseName.toLowerCase();
+        for (var i = 0; i < types.size(); ++i) {
+            final var type = types.get(i);
+            final var className = type.split(":")[0].trim();
+            final var allFields = type.split(":")[1].split("\\|");
+
+            writer.println();
+            writer.println(indent + "@Override");
+            writer.println(indent + "public Void visit" + className + baseName + "(final " + baseName + "." + className + " " + variable + ") {");
+            writer.println(indent + TABULATION + "out.tag(" + (i + 1) + ");");
+            for (final var field : allFields[0].trim().split(", ")) {
+                final var fieldType = field.split(" ")[0];
+                final var name = variable + "." + field.split(" ")[1];
+                writer.println(indent + TABULATION + writeField(fieldType, name) + ";");
+            }
+            if (allFields.length > 1) {
+                for (final var annotation : allFields[1].trim().split(", ")) {
+                    final var name = variable + "." + annotation.split(" ")[1];
+                    final var value = annotation.startsWith("boolean ") ? name + " ? 1 : 0" : name;
+                    writer.println(indent + TABULATION + "out.integer(" + value + ");");
+                }
+            }
+            writer.println(indent + TABULATION + "return null;");
+            writer.println(indent + "}");
+        }
+    }
+
+    private static String writeField(final String type, final String name) {
+        switch (type) {
+            case "Token": return "out.token(" + name + ")";
+            case "Object": return "out.literal(" + name + ")";
+            case "List<Token>": return "out.tokens(" + name + ")";
+        }
+
+        if (type.startsWith("List<")) return (type.startsWith("List<Expr") ? "exprs(" : "stmts(") + name + ")";
+        return (type.startsWith("Expr") ? "expr(" : "stmt(") + name + ")";
+    }
+
+    private static void defineCodecReader(final PrintWriter writer, final String baseName, final List<String> types) {
+        final var indent = TABULATION + TABULATION;
+        writer.println(TABULATION + "static " + baseName + " read" + baseName + "(final AstCache.Input in) {");
+        writer.println(indent + "switch (in.tag()) {");
+        writer.println(indent + TABULATION + "case 0: return null;");
+        for (var i = 0; i < types.size(); ++i) {
+            final var type = types.get(i);
+            final var className = type.split(":")[0].trim();
+            final var allFields = type.split(":")[1].split("\\|");
+
+            final var arguments = new StringBuilder();
+            for (final var field : allFields[0].trim().split(", ")) {
+                if (arguments.length() > 0) arguments.append(", ");
+                arguments.append(readField(field.split(" ")[0]));
+            }
+
+            final var constructor = "new " + baseName + "." + className + "(" + arguments + ")";
+            if (allFields.length == 1) {
+                writer.println(indent + TABULATION + "case " + (i + 1) + ": return " + constructor + ";");
+                continue;
+            }
+
+            writer.println(indent + TABULATION + "case " + (i + 1) + ": {");
+            writer.println(indent + TABULATION + TABULATION + "final var node = " + constructor + ";");
+            for (final var annotation : allFields[1].trim().split(", ")) {
+                final var value = annotation.startsWith("boolean ") ? "in.integer() != 0" : "in.integer()";
+                writer.println(indent + TABULATION + TABULATION + "node." + annotation.split(" ")[1] + " = " + value + ";");
+            }
+            writer.println(indent + TABULATION + TABULATION + "return node;");
+            writer.println(indent + TABULATION + "}");
+        }
+        writer.println(indent + "}");
+        writer.println();
+        writer.println(indent + "throw new IllegalStateException(\"Unknown " + baseName + " tag\");");
+        writer.println(TABULATION + "}");
+        writer.println();
+
+        writer.println(TABULATION + "@SuppressWarnings(\"unchecked\")");
+        writer.println(TABULATION + "static <T extends " + baseName + "> List<T> read" + baseName + "s(final AstCache.Input in) {");
+        writer.println(indent + "final var count = in.count();");
+        writer.println(indent + "final List<T> nodes = new ArrayList<>(count);");
+        writer.println(indent + "for (var i = 0; i < count; ++i)");
+        writer.println(indent + TABULATION + "nodes.add((T) read" + baseName + "(in));");
+        writer.println(indent + "return nodes;");
+        writer.println(TABULATION + "}");
+        writer.println();
+    }
+
+    private static String readField(final String type) {
+        switch (type) {
+            case "Token": return "in.token()";
+            case "Object": return "in.literal()";
+            case "List<Token>": return "in.tokens()";
+            case "Expr": return "readExpr(in)";
+            case "Stmt": return "readStmt(in)";
+        }
+
+        if (type.startsWith("List<")) return (type.startsWith("List<Expr") ? "readExprs(in)" : "readStmts(in)");
+        // A subclass, i.e. Expr.Variable
+        return "(" + type + ") read" + type.split("\\.")[0] + "(in)";
+    }
 }
@@ -0,0 +1,54 @@
+#!/bin/sh
+# Runs every script in this directory on each engine (tree, closure and
+# jvm), with and without --optimize, and fails on any run whose output
+# (stdout, stderr and exit status) differs from the tree engine's. Scripts with a <name>.expected
+# file are also checked against it, and a "// engines: ..." line limits
+# the engines a script runs on.
+#
+# Usage: tests/run.sh [classpath], the classpath defaults to the one
+# `mvn -f jlox compile` leaves in jlox/target/classes
+cd "$(dirname "$0")" || exit 1
+classpath=${1:-../target/classes}
+engines="tree closure jvm"
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+failed=0
+
+run() {
+    java -cp "$classpath" org.gustrb.lox.Lox "$@" > "$work/out" 2>&1
+    echo "exit $?" >> "$work/out"
+}
+
+for script in *.lox; do
+    only=$(sed -n 's|^// engines: ||p' "$script")
+    run --engine=tree "$script"
+    mv "$work/out" "$work/tree"
+
+    if [ -f "${script%.lox}.expected" ] && ! cmp -s "${script%.lox}.expected" "$work/tree"; then
+        echo "FAIL $script: tree doesn't print what ${script%.lox}.expected says"
+        failed=1
+    fi
+
+    for engine in $engines; do
+        case " ${only:-$engines} " in *" $engine "*) ;; *) continue ;; esac
+        for optimize in "" --optimize; do
+            run --engine=$engine $optimize "$script"
+            if ! cmp -s "$work/tree" "$work/out"; then
+                echo "FAIL $script: $engine $optimize differs from tree"
+                failed=1
+            fi
+        done
+    done
+done
+
+# A script fed through a pipe has no size to map, it is read like any other
+run --engine=tree print.lox
+mv "$work/out" "$work/tree"
+cat print.lox | run --engine=tree /dev/stdin
+if ! cmp -s "$work/tree" "$work/out"; then
+    echo "FAIL print.lox: read from /dev/stdin it differs from the file"
+    failed=1
+fi
+
+[ $failed = 0 ] && echo "All scripts agree"
+exit $failed